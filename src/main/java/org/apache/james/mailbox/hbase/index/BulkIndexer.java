@@ -0,0 +1,196 @@
+package org.apache.james.mailbox.hbase.index;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.james.mailbox.MailboxSession;
+import org.apache.james.mailbox.exception.MailboxException;
+import org.apache.james.mailbox.hbase.store.HBaseIndexStore;
+import org.apache.james.mailbox.model.MessageRange;
+import org.apache.james.mailbox.store.mail.MessageMapper;
+import org.apache.james.mailbox.store.mail.MessageMapperFactory;
+import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Indexes whole mailboxes, when the index is built for existing mailboxes or rebuilt. The messages are read
+ * a batch at a time in uid order, parsed and tokenized on {@link HBaseIndexStore#getBulkThreads()} threads,
+ * and their puts go through the write buffer of the store.
+ * <p/>
+ * Once the postings and the forward index rows of a batch are flushed, the highest uid of the batch is stored
+ * as the {@link HBaseIndexStore#bulkCheckpoint} of the mailbox, which {@link #resume} starts after. The forward
+ * index rows can not tell where a run stopped: the messages added meanwhile get theirs too.
+ */
+public class BulkIndexer {
+    private static final Logger LOG = LoggerFactory.getLogger(BulkIndexer.class);
+
+    /**
+     * told about every batch written to the store
+     */
+    public interface Progress {
+        /**
+         * @param mailbox
+         * @param lastUid the messages up to this uid are indexed, the next run can start after it
+         * @param count   number of messages indexed so far by this run
+         */
+        void indexed(Mailbox<UUID> mailbox, long lastUid, long count);
+    }
+
+    private final MessageSearchIndexListener listener;
+    private final HBaseIndexStore store;
+    private final ExecutorService workers;
+    private final int batchSize;
+
+    public BulkIndexer(MessageSearchIndexListener listener, HBaseIndexStore store) {
+        this.listener = listener;
+        this.store = store;
+        this.batchSize = store.getBulkBatchSize();
+        final AtomicInteger threads = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(store.getBulkThreads(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hbaluin-index-bulk-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * indexes the messages of the mailbox from a uid on
+     *
+     * @param session
+     * @param factory
+     * @param mailbox
+     * @param fromUid  first uid to index
+     * @param progress may be null
+     * @return number of messages indexed
+     * @throws MailboxException
+     */
+    public long index(MailboxSession session, MessageMapperFactory<UUID> factory, Mailbox<UUID> mailbox,
+                      long fromUid, Progress progress) throws MailboxException {
+        MessageMapper<UUID> mapper = factory.getMessageMapper(session);
+        long count = 0;
+        long from = fromUid;
+        while (true) {
+            List<Message<UUID>> batch = Lists.newArrayList(
+                    mapper.findInMailbox(mailbox, MessageRange.from(from), MessageMapper.FetchType.Full, batchSize));
+            if (batch.isEmpty())
+                return count;
+            long lastUid = indexBatch(mailbox, batch);
+            count += batch.size();
+            if (progress != null)
+                progress.indexed(mailbox, lastUid, count);
+            if (batch.size() < batchSize)
+                return count;
+            from = lastUid + 1;
+        }
+    }
+
+    /**
+     * indexes the messages of the mailbox following the checkpoint of the last batch written by an earlier run
+     *
+     * @return number of messages indexed
+     * @throws MailboxException
+     */
+    public long resume(MailboxSession session, MessageMapperFactory<UUID> factory, Mailbox<UUID> mailbox,
+                       Progress progress) throws MailboxException {
+        long lastUid;
+        try {
+            lastUid = store.bulkCheckpoint(MessageSearchIndexListener.uuidToBytes(mailbox.getMailboxId()));
+        } catch (IOException e) {
+            throw new MailboxException("Problem reading the bulk checkpoint of mailbox " + mailbox.getMailboxId(), e);
+        }
+        return index(session, factory, mailbox, lastUid + 1, progress);
+    }
+
+    /**
+     * indexes a stream of messages of the mailbox, in uid order for the reported uids to be resume points
+     *
+     * @param mailbox
+     * @param messages
+     * @param progress may be null
+     * @return number of messages indexed
+     * @throws MailboxException
+     */
+    public long index(Mailbox<UUID> mailbox, Iterator<Message<UUID>> messages, Progress progress) throws MailboxException {
+        long count = 0;
+        Iterator<List<Message<UUID>>> batches = Iterators.partition(messages, batchSize);
+        while (batches.hasNext()) {
+            List<Message<UUID>> batch = batches.next();
+            long lastUid = indexBatch(mailbox, batch);
+            count += batch.size();
+            if (progress != null)
+                progress.indexed(mailbox, lastUid, count);
+        }
+        return count;
+    }
+
+    /**
+     * stops the worker threads, the store stays open
+     */
+    public void close() {
+        workers.shutdown();
+    }
+
+    /**
+     * @return the highest uid of the batch
+     */
+    private long indexBatch(Mailbox<UUID> mailbox, List<Message<UUID>> batch) throws MailboxException {
+        List<Future<Put>> tasks = Lists.newArrayListWithCapacity(batch.size());
+        long lastUid = 0;
+        try {
+            for (final Message<UUID> message : batch) {
+                lastUid = Math.max(lastUid, message.getUid());
+                tasks.add(workers.submit(new Callable<Put>() {
+                    @Override
+                    public Put call() throws Exception {
+                        List<Put> document = Lists.newArrayListWithCapacity(1);
+                        listener.indexMessage(message, document);
+                        return document.get(0);
+                    }
+                }));
+            }
+            List<Put> documents = Lists.newArrayListWithCapacity(batch.size());
+            for (int i = 0; i < tasks.size(); i++) {
+                try {
+                    documents.add(tasks.get(i).get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    // an unreadable message does not stop the mailbox, it is left out as add would leave it
+                    LOG.warn("Couldn't index mail " + batch.get(i).getUid() + " of mailbox " + mailbox.getMailboxId(), e.getCause());
+                }
+            }
+            store.flushToStore();
+            store.storeMail(documents);
+            store.storeBulkCheckpoint(MessageSearchIndexListener.uuidToBytes(mailbox.getMailboxId()), lastUid);
+            return lastUid;
+        } catch (IOException e) {
+            throw new MailboxException("Problem indexing the mails up to " + lastUid +
+                    " of mailbox " + mailbox.getMailboxId(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailboxException("Interrupted while indexing mailbox " + mailbox.getMailboxId(), e);
+        } finally {
+            for (Future<Put> task : tasks)
+                task.cancel(true);
+            if (listener.getSearchCache() != null)
+                listener.getSearchCache().invalidate(mailbox.getMailboxId());
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.apache.james.mailbox.hbase.index;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Ends the stream after a number of bytes, the rest of a part too large to be indexed is left to the parser.
+ */
+final class CappedInputStream extends FilterInputStream {
+    private long remaining;
+    private long count;
+
+    /**
+     * @param in
+     * @param limit number of bytes which can be read, negative for no limit
+     */
+    CappedInputStream(InputStream in, long limit) {
+        super(in);
+        this.remaining = limit < 0 ? Long.MAX_VALUE : limit;
+    }
+
+    /**
+     * @return number of bytes read
+     */
+    long getCount() {
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0)
+            return -1;
+        int b = super.read();
+        if (b >= 0) {
+            remaining--;
+            count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (remaining <= 0)
+            return -1;
+        int read = super.read(buffer, offset, (int) Math.min(length, remaining));
+        if (read > 0) {
+            remaining -= read;
+            count += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        count += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(super.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -0,0 +1,128 @@
+package org.apache.james.mailbox.hbase.index;
+
+import com.google.common.collect.Lists;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The distinct suffixes of the rows written for one message, with the number of occurrences of their term.
+ * The suffixes are appended once to the value of the forward index row, in the layout of
+ * {@link org.apache.james.mailbox.hbase.store.DocumentTerms}, and found again through a table of their
+ * offsets in it: a message costs its forward index row and a few ints per term, no object per term.
+ */
+final class DocumentSuffixes {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final DataOutputBuffer value = new DataOutputBuffer();
+    /**
+     * per suffix, in the order they were added
+     */
+    private int[] offsets = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    /**
+     * open addressing on the hash of the suffixes, index of the suffix + 1, 0 for a free slot
+     */
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+    private int size;
+
+    /**
+     * @param suffix
+     * @param occurrences number of times the term was found, at least 1
+     * @return the occurrences counted before this call, 0 when the suffix is new
+     * @throws IOException
+     */
+    int add(byte[] suffix, int occurrences) throws IOException {
+        int slot = slot(suffix);
+        int index = slots[slot] - 1;
+        if (index >= 0) {
+            int previous = counts[index];
+            counts[index] += occurrences;
+            return previous;
+        }
+        if (size == offsets.length) {
+            int capacity = size * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        WritableUtils.writeVInt(value, suffix.length);
+        offsets[size] = value.getLength();
+        lengths[size] = suffix.length;
+        counts[size] = occurrences;
+        value.write(suffix);
+        slots[slot] = ++size;
+        // kept at most half full
+        if (size * 2 > slots.length)
+            rehash();
+        return 0;
+    }
+
+    boolean contains(byte[] suffix) {
+        return slots[slot(suffix)] != 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param from index of the first suffix, in the order they were added
+     * @return the suffixes added from this one on
+     */
+    List<byte[]> suffixes(int from) {
+        byte[] data = value.getData();
+        List<byte[]> suffixes = Lists.newArrayListWithCapacity(Math.max(size - from, 0));
+        for (int index = from; index < size; index++)
+            suffixes.add(Arrays.copyOfRange(data, offsets[index], offsets[index] + lengths[index]));
+        return suffixes;
+    }
+
+    /**
+     * @return the value of the forward index row
+     */
+    byte[] encode() {
+        return Arrays.copyOf(value.getData(), value.getLength());
+    }
+
+    /**
+     * @return the slot of the suffix, or the free slot where it goes
+     */
+    private int slot(byte[] suffix) {
+        byte[] data = value.getData();
+        int mask = slots.length - 1;
+        int slot = hash(suffix, 0, suffix.length) & mask;
+        while (slots[slot] != 0) {
+            int index = slots[slot] - 1;
+            if (Bytes.compareTo(data, offsets[index], lengths[index], suffix, 0, suffix.length) == 0)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        byte[] data = value.getData();
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int index = 0; index < size; index++) {
+            int slot = hash(data, offsets[index], lengths[index]) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = index + 1;
+        }
+    }
+
+    private static int hash(byte[] buffer, int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++)
+            hash = 31 * hash + buffer[i];
+        // the slot is taken from the low bits
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -3,7 +3,7 @@ package org.apache.james.mailbox.hbase.index;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
-import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
@@ -11,9 +11,16 @@ import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.james.mailbox.MailboxSession;
 import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.exception.UnsupportedSearchException;
+import org.apache.james.mailbox.hbase.store.FlagPostings;
 import org.apache.james.mailbox.hbase.store.HBaseIndexStore;
 import org.apache.james.mailbox.hbase.store.HBaseNames;
 import org.apache.james.mailbox.hbase.store.MessageFields;
+import org.apache.james.mailbox.hbase.store.NumericTerms;
+import org.apache.james.mailbox.hbase.store.RowKeys;
+import org.apache.james.mailbox.hbase.store.TermDictionary;
+import org.apache.james.mailbox.hbase.store.TermFrequency;
+import org.apache.james.mailbox.hbase.store.TermGrams;
+import org.apache.james.mailbox.hbase.store.UidSet;
 import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.SearchQuery;
 import org.apache.james.mailbox.store.mail.MessageMapperFactory;
@@ -34,19 +41,17 @@ import org.apache.james.mime4j.parser.MimeStreamParser;
 import org.apache.james.mime4j.stream.BodyDescriptor;
 import org.apache.james.mime4j.stream.MimeConfig;
 import org.apache.james.mime4j.util.MimeUtil;
-import org.apache.lucene.analysis.standard.UAX29URLEmailTokenizer;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.DateTools;
-import org.apache.lucene.util.Version;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.mail.Flags;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.text.NumberFormat;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static javax.mail.Flags.Flag;
 import static javax.mail.Flags.Flag.*;
@@ -61,66 +66,318 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
     private final static String MEDIA_TYPE_MESSAGE = "message";
     private final static String DEFAULT_ENCODING = "US-ASCII";
     private HBaseIndexStore store;
+    /**
+     * null when the search results are not cached
+     */
+    private final SearchResultCache searchCache;
+    /**
+     * messages added since the listener was created, every {@link HBaseIndexStore#getFlushAdds()} adds are flushed
+     */
+    private final AtomicLong adds = new AtomicLong();
 
     public MessageSearchIndexListener(MessageMapperFactory<UUID> factory, HBaseIndexStore store) throws IOException {
         super(factory);
         this.store = store;
+        this.searchCache = store.getSearchCacheSize() > 0
+                ? new SearchResultCache(store.getSearchCacheSize(), store.getSearchCacheQueries()) : null;
+    }
+
+    /**
+     * @return the cache of the search results, null when disabled
+     */
+    public SearchResultCache getSearchCache() {
+        return searchCache;
     }
 
     @Override
     public void add(MailboxSession session, Mailbox<UUID> mailbox, Message<UUID> message) throws MailboxException {
+        // the puts stay in the store's write buffer, they are flushed in batches and before any read,
+        // and by the adding thread every few messages so that a failing store reaches the mailbox manager
         try {
-            store.storeMail(indexMessage(message));
+            indexMessage(message);
+            int flushAdds = store.getFlushAdds();
+            if (flushAdds > 0 && adds.incrementAndGet() % flushAdds == 0)
+                store.flushToStore();
         } catch (IOException e) {
             throw new MailboxException("Problem adding the mail " + message.getUid() +
                     " in mailbox " + message.getMailboxId() + " to the storage!", e);
         } finally {
-            try {
-                store.flushToStore();
-            } catch (IOException e) {
-                LOG.warn("Storing index in table has failed.");
-            }
+            // after the write: a search running meanwhile can not cache a result without the message
+            if (searchCache != null)
+                searchCache.invalidate(mailbox.getMailboxId());
+        }
+    }
+
+    /**
+     * writes the postings of the messages added so far, the durability boundary of the index: the mailbox
+     * manager calls it when it commits the messages, and gets the failure of the write.
+     *
+     * @throws MailboxException
+     */
+    public void flush() throws MailboxException {
+        try {
+            store.flushToStore();
+        } catch (IOException e) {
+            throw new MailboxException("Problem writing the index to the storage!", e);
+        }
+    }
+
+    /**
+     * indexes the message again, replacing its previous postings. The new rows are written before
+     * the stale ones are deleted so that a concurrent search never misses the message.
+     *
+     * @param mailbox
+     * @param message
+     * @throws MailboxException
+     */
+    public void reindex(Mailbox<UUID> mailbox, Message<UUID> message) throws MailboxException {
+        final byte[] mailboxId = uuidToBytes(mailbox.getMailboxId());
+        final long messageId = message.getUid();
+        try {
+            List<byte[]> previous = store.retrieveDocument(mailboxId, messageId);
+            DocumentSuffixes current = indexMessage(message);
+            store.flushToStore();
+            if (previous == null)
+                return;
+
+            List<byte[]> stale = Lists.newArrayList();
+            for (byte[] suffix : previous)
+                if (!current.contains(suffix))
+                    stale.add(suffix);
+            store.deleteMails(documentDeletes(mailboxId, messageId, stale));
+        } catch (IOException e) {
+            throw new MailboxException("Problem reindexing the mail " + messageId +
+                    " in mailbox " + mailbox.getMailboxId(), e);
+        } finally {
+            if (searchCache != null)
+                searchCache.invalidate(mailbox.getMailboxId());
         }
     }
 
-    private List<Put> indexMessage(Message<UUID> message) throws MailboxException {
+    /**
+     * writes the postings of the message to the store's write buffer while it is parsed, a chunk of distinct
+     * terms at a time, so large messages are not held in memory. The forward index row is written last.
+     *
+     * @param message
+     * @return the suffixes of the rows of the message, as written in its forward index
+     * @throws MailboxException
+     * @throws IOException
+     */
+    private DocumentSuffixes indexMessage(Message<UUID> message) throws MailboxException, IOException {
+        List<Put> document = Lists.newArrayListWithCapacity(1);
+        DocumentSuffixes suffixes = indexMessage(message, document);
+        store.storeMail(document);
+        return suffixes;
+    }
+
+    /**
+     * same as {@link #indexMessage(Message)}, but the forward index row is left to the caller. The rows
+     * of the flags, the date and the uid are only written once the message is parsed: when the parsing
+     * fails, the postings of the chunks already written are deleted and the message is not indexed at all.
+     *
+     * @param message
+     * @param document receives the put of the forward index row
+     * @return the suffixes of the rows of the message, as written in its forward index
+     * @throws MailboxException
+     * @throws IOException
+     */
+    DocumentSuffixes indexMessage(Message<UUID> message, List<Put> document) throws MailboxException, IOException {
         final List<Put> puts = Lists.newArrayList();
-        final UUID mailboxId = message.getMailboxId();
+        final byte[] mailboxId = uuidToBytes(message.getMailboxId());
         final long messageId = message.getUid();
-        //add flags
-        Put put = new Put(Bytes.add(uuidToBytes(mailboxId), new byte[]{FLAGS_FIELD.id}));
-        put.add(HBaseNames.COLUMN_FAMILY.name, Bytes.toBytes(messageId), Bytes.toBytes(parseFlagsContent(message)));
+        final byte[] qualifier = Bytes.toBytes(messageId);
+        //add flags, the posting rows are not part of the forward index since the flags change
+        final FlagPostings flagPostings = store.getFlagPostings();
+        final List<String> flags = flagNames(message.createFlags());
+        MessageIndexer indexer = new MessageIndexer(mailboxId, messageId);
+        Put put = new Put(flagPostings.flagsRow(mailboxId, messageId));
+        put.add(HBaseNames.COLUMN_FAMILY.name, qualifier, Bytes.toBytes(FlagPostings.encode(flags)));
         puts.add(put);
-        //add full content
-        for (Map.Entry<MessageFields, String> entry : parseFullContent(message).entries()) {
-            put = new Put(Bytes.add(uuidToBytes(mailboxId), new byte[]{entry.getKey().id}, Bytes.toBytes(entry.getValue())));
-            put.add(HBaseNames.COLUMN_FAMILY.name, Bytes.toBytes(messageId), EMPTY_COLUMN_VALUE.name);
+        indexer.document.add(RowKeys.suffix(put.getRow()), 1);
+        for (String flag : flags) {
+            put = new Put(flagPostings.postingRow(mailboxId, flag, messageId));
+            put.add(HBaseNames.COLUMN_FAMILY.name, qualifier, EMPTY_COLUMN_VALUE.name);
             puts.add(put);
         }
-        return puts;
+        //add the numeric terms
+        put = numericPut(mailboxId, SENT_DATE_FIELD, message.getInternalDate().getTime(), qualifier);
+        puts.add(put);
+        indexer.document.add(RowKeys.suffix(put.getRow()), 1);
+        put = numericPut(mailboxId, UID_FIELD, messageId, qualifier);
+        puts.add(put);
+        indexer.document.add(RowKeys.suffix(put.getRow()), 1);
+        //add full content
+        indexer.firstTerm = indexer.document.size();
+        boolean parsed = false;
+        try {
+            parseFullContent(message, indexer);
+            indexer.flush();
+            parsed = true;
+        } finally {
+            if (!parsed)
+                indexer.discard();
+        }
+        store.storeMail(puts);
+        //add the forward index
+        put = new Put(RowKeys.documentRow(mailboxId, messageId));
+        put.add(HBaseNames.COLUMN_FAMILY.name, qualifier, indexer.document.encode());
+        document.add(put);
+        return indexer.document;
+    }
+
+    /**
+     * collects the terms of a message and writes their postings every {@link HBaseIndexStore#getChunkTerms()}
+     * distinct terms. The suffixes of the term rows already written are kept for the forward index, with the
+     * number of occurrences of their term, up to {@link HBaseIndexStore#getMaxMessageTerms()} of them: the
+     * later terms are skipped so that neither the heap nor the forward index cell grow with the message.
+     */
+    private final class MessageIndexer implements TermSink {
+        private final byte[] mailboxId;
+        private final long messageId;
+        private final byte[] qualifier;
+        private final MessageTerms pending = new MessageTerms();
+        private final DocumentSuffixes document = new DocumentSuffixes();
+        /**
+         * the suffixes from this one on are of the term rows written by the chunks
+         */
+        private int firstTerm;
+        /**
+         * the parser callbacks can not throw it, the first failure ends the indexing of the message
+         */
+        private IOException failure;
+        private boolean truncated;
+
+        MessageIndexer(byte[] mailboxId, long messageId) {
+            this.mailboxId = mailboxId;
+            this.messageId = messageId;
+            this.qualifier = Bytes.toBytes(messageId);
+        }
+
+        @Override
+        public void term(MessageFields field, char[] buffer, int offset, int length) {
+            if (failure != null)
+                return;
+            pending.term(field, buffer, offset, length);
+            if (pending.size() >= store.getChunkTerms()) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+
+        void flush() throws IOException {
+            if (failure != null)
+                throw failure;
+            if (pending.size() == 0)
+                return;
+            final List<Put> puts = Lists.newArrayListWithCapacity(pending.size());
+            final Map<byte[], Put> grams = new TreeMap<byte[], Put>(Bytes.BYTES_COMPARATOR);
+            final Map<byte[], Long> termIds = termIds(pending.terms());
+            for (Map.Entry<MessageFields, Map<ByteBuffer, int[]>> field : pending.getFields().entrySet()) {
+                for (Map.Entry<ByteBuffer, int[]> entry : field.getValue().entrySet()) {
+                    byte[] term = entry.getKey().array();
+                    byte[] suffix = RowKeys.suffix(field.getKey().id, termIds.containsKey(term)
+                            ? TermDictionary.idTerm(termIds.get(term)) : term);
+                    int count = entry.getValue()[0];
+                    if (document.size() >= store.getMaxMessageTerms() && !document.contains(suffix)) {
+                        if (!truncated)
+                            LOG.info("Mail " + messageId + " has more than " + store.getMaxMessageTerms()
+                                    + " distinct terms, the later ones are not indexed.");
+                        truncated = true;
+                        continue;
+                    }
+                    int previous = document.add(suffix, count);
+                    if (previous == 0) {
+                        if (store.isTermGrams() && TermGrams.isIndexed(field.getKey()))
+                            addGrams(mailboxId, field.getKey(), term, grams);
+                    } else if (!store.isTermFrequencies()) {
+                        // already written by an earlier chunk
+                        continue;
+                    }
+                    Put put = new Put(RowKeys.row(mailboxId, suffix));
+                    put.add(HBaseNames.COLUMN_FAMILY.name, qualifier, store.isTermFrequencies()
+                            ? TermFrequency.encode(previous + count) : EMPTY_COLUMN_VALUE.name);
+                    puts.add(put);
+                }
+            }
+            // the gram rows only list terms, they are not part of the forward index
+            puts.addAll(grams.values());
+            pending.clear();
+            store.storeMail(puts);
+        }
+
+        /**
+         * deletes the postings the chunks have written, the message is left out of the index. The gram rows
+         * are left, their terms are dropped by {@link HBaseIndexStore#purgeGrams}
+         */
+        void discard() {
+            pending.clear();
+            try {
+                store.deleteMails(documentDeletes(mailboxId, messageId, document.suffixes(firstTerm)));
+            } catch (IOException e) {
+                LOG.warn("Couldn't delete the postings of mail " + messageId + " which failed to be indexed", e);
+            }
+        }
+    }
+    /**
+     * @return the dictionary ids of the non empty terms, none when the dictionary is not enabled
+     */
+    private Map<byte[], Long> termIds(Collection<byte[]> values) throws IOException {
+        if (!store.isTermDictionary())
+            return Collections.emptyMap();
+        Set<byte[]> terms = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+        for (byte[] value : values)
+            if (value.length > 0)
+                terms.add(value);
+        return store.termIds(terms);
+    }
+
+    private static Put numericPut(byte[] mailboxId, MessageFields field, long value, byte[] qualifier) {
+        Put put = new Put(RowKeys.row(mailboxId, field.id, NumericTerms.encode(value)));
+        put.add(HBaseNames.COLUMN_FAMILY.name, qualifier, EMPTY_COLUMN_VALUE.name);
+        return put;
+    }
+
+    private static void addGrams(byte[] mailboxId, MessageFields field, byte[] term, Map<byte[], Put> grams) {
+        for (byte[] gram : TermGrams.indexedGrams(term)) {
+            byte[] row = TermGrams.row(mailboxId, field, gram);
+            Put put = grams.get(row);
+            if (put == null) {
+                put = new Put(row);
+                grams.put(row, put);
+            }
+            put.add(HBaseNames.COLUMN_FAMILY.name, term, EMPTY_COLUMN_VALUE.name);
+        }
+    }
+
+    private static List<Delete> documentDeletes(byte[] mailboxId, long messageId, Collection<byte[]> suffixes) {
+        final byte[] qualifier = Bytes.toBytes(messageId);
+        final List<Delete> deletes = Lists.newArrayListWithCapacity(suffixes.size());
+        for (byte[] suffix : suffixes) {
+            Delete delete = new Delete(RowKeys.row(mailboxId, suffix));
+            // every version: a term seen again in a later chunk has its count written twice
+            delete.deleteColumns(HBaseNames.COLUMN_FAMILY.name, qualifier);
+            deletes.add(delete);
+        }
+        return deletes;
     }
 
     public static byte[] uuidToBytes(UUID uuid) {
-        return Bytes.add(Bytes.toBytes(uuid.getMostSignificantBits()),
-                Bytes.toBytes(uuid.getLeastSignificantBits()));
+        return RowKeys.mailboxId(uuid);
     }
 
     public static UUID rowToUUID(byte[] row) {
-        byte[] uuidz = Bytes.head(row, 16);
-        return new UUID(Bytes.toLong(Bytes.head(uuidz, 8)), Bytes.toLong(Bytes.tail(uuidz, 8)));
+        return RowKeys.mailboxUUID(row, 0);
     }
 
     public static MessageFields rowToField(byte[] row) {
-        byte[] fieldRead = Bytes.tail(Bytes.head(row, 17), 1);
-        for (MessageFields field : MessageFields.values())
-            if (field.id == fieldRead[0])
-                return field;
-        return NOT_FOUND;
+        return RowKeys.field(row, 0, row.length);
     }
 
     public static String rowToTerm(byte[] row) {
-        byte[] term = Bytes.tail(row, row.length - 17);
-        return Bytes.toString(term);
+        return RowKeys.term(row, 0, row.length);
     }
 
     public static String row(byte[] row) {
@@ -129,27 +386,69 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
 
     @Override
     public void delete(MailboxSession session, Mailbox<UUID> mailbox, MessageRange range) throws MailboxException {
-        // delete a message from mailbox - maybe just mark it in a list and perform the delete on HBase compactions
+        try {
+            deleteMails(uuidToBytes(mailbox.getMailboxId()), range);
+        } finally {
+            // after the deletes, the cached results would otherwise keep the messages
+            if (searchCache != null) {
+                UidSet deleted = new UidSet();
+                for (Long messageId : range)
+                    deleted.add(messageId);
+                searchCache.removeUids(mailbox.getMailboxId(), deleted);
+            }
+        }
+    }
+
+    private void deleteMails(byte[] mailboxId, MessageRange range) {
+        if (store.isLazyDeletes()) {
+            // only mark the messages, the cells are dropped on the next HBase compaction
+            try {
+                store.markDeleted(mailboxId, range);
+            } catch (IOException e) {
+                LOG.warn("Couldn't delete mail from mailbox");
+            }
+            return;
+        }
         for (Long messageId : range) {
-            ResultScanner scanner = null;
             try {
-                scanner = store.retrieveMails(uuidToBytes(mailbox.getMailboxId()), messageId);
-                for (Result result : scanner) {
-                    store.deleteMail(result.getRow(), messageId);
+                List<byte[]> document = store.retrieveDocument(mailboxId, messageId);
+                if (document == null) {
+                    // indexed before the forward index existed, the rows have to be found by scanning
+                    deleteByScan(mailboxId, messageId);
+                } else {
+                    List<byte[]> suffixes = Lists.newArrayList(document);
+                    for (String flag : store.retrieveFlags(mailboxId, messageId))
+                        suffixes.add(store.getFlagPostings().postingSuffix(flag, messageId));
+                    List<Delete> deletes = documentDeletes(mailboxId, messageId, suffixes);
+                    Delete forward = new Delete(RowKeys.documentRow(mailboxId, messageId));
+                    deletes.add(forward);
+                    store.deleteMails(deletes);
                 }
+                if (store.isPostingBlocks())
+                    // packed uids are only masked by the tombstone until the next compaction
+                    store.markDeleted(mailboxId, Collections.singleton(messageId));
             } catch (IOException e) {
                 LOG.warn("Couldn't delete mail from mailbox");
-            } finally {
-                try {
-                    store.flushToStore();
-                    scanner.close();
-                } catch (IOException e) {
-                    LOG.warn("Storing index in table has failed.");
-                }
             }
         }
     }
 
+    private void deleteByScan(byte[] mailboxId, long messageId) throws IOException {
+        ResultScanner scanner = store.retrieveMails(mailboxId, messageId);
+        try {
+            final byte[] qualifier = Bytes.toBytes(messageId);
+            final List<Delete> deletes = Lists.newArrayList();
+            for (Result result : scanner) {
+                Delete delete = new Delete(result.getRow());
+                delete.deleteColumn(HBaseNames.COLUMN_FAMILY.name, qualifier);
+                deletes.add(delete);
+            }
+            store.deleteMails(deletes);
+        } finally {
+            scanner.close();
+        }
+    }
+
 
     /**
      * all previous flags are deleted upon update
@@ -164,11 +463,21 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
     public void update(MailboxSession session, Mailbox<UUID> mailbox, MessageRange range, Flags flags) throws MailboxException {
         // update the cells that changed - this means update the flags (and maybe other metadata).
         // message body and headers are immutable so they do not change
+        final byte[] mailboxId = uuidToBytes(mailbox.getMailboxId());
+        final List<String> current = flagNames(flags);
+        try {
+            updateFlags(mailboxId, range, current);
+        } finally {
+            if (searchCache != null)
+                searchCache.invalidateFlags(mailbox.getMailboxId());
+        }
+    }
+
+    private void updateFlags(byte[] mailboxId, MessageRange range, List<String> current) throws MailboxException {
         for (Long messageId : range) {
-            Result result;
             try {
-                result = store.retrieveFlags(uuidToBytes(mailbox.getMailboxId()), messageId);
-                store.updateFlags(result.getRow(), messageId, parseFlagsContent(flags));
+                Set<String> previous = store.retrieveFlags(mailboxId, messageId);
+                store.updateFlags(mailboxId, messageId, previous, current);
             } catch (IOException e) {
                 throw new MailboxException("Couldn't retrieve flags", e);
             } finally {
@@ -183,26 +492,46 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
 
     @Override
     public Iterator<Long> search(MailboxSession session, Mailbox<UUID> mailbox, SearchQuery searchQuery) throws MailboxException {
-        // return a list of search results
-        Multimap<MessageFields, String> queries = ArrayListMultimap.create();
+        // the criteria of the search query all have to match
+        List<Multimap<MessageFields, String>> criteria = Lists.newArrayList();
         for (SearchQuery.Criterion criterion : searchQuery.getCriterias()) {
-            queries.putAll(createQuery(criterion));
+            for (Multimap<MessageFields, String> query : createQuery(criterion))
+                // a criterion without query does not restrict the search
+                if (!query.isEmpty())
+                    criteria.add(query);
         }
 
         try {
-            return store.retrieveMails(uuidToBytes(mailbox.getMailboxId()), queries);
+            if (searchCache == null)
+                return store.retrieveMails(uuidToBytes(mailbox.getMailboxId()), criteria);
+            return cachedSearch(mailbox.getMailboxId(), criteria);
         } catch (Throwable throwable) {
             throw new MailboxException("Exception thrown while searching through the index", (Exception) throwable);
         }
     }
 
+    private Iterator<Long> cachedSearch(UUID mailboxId, List<Multimap<MessageFields, String>> criteria)
+            throws Throwable {
+        String query = SearchResultCache.normalize(criteria);
+        UidSet uids = searchCache.get(mailboxId, query);
+        if (uids != null)
+            return uids.iterator();
+        long version = searchCache.version(mailboxId);
+        uids = new UidSet();
+        for (Iterator<Long> matches = store.retrieveMails(uuidToBytes(mailboxId), criteria); matches.hasNext(); )
+            uids.add(matches.next());
+        searchCache.put(mailboxId, query, SearchResultCache.isFlagDependent(criteria), version, uids);
+        return uids.iterator();
+    }
+
     /**
-     * Return a query which is built based on the given {@link org.apache.james.mailbox.model.SearchQuery.Criterion}
+     * Return the queries which are built based on the given {@link org.apache.james.mailbox.model.SearchQuery.Criterion},
+     * a message matches the criterion when it matches all of them
      */
-    private Multimap<MessageFields, String> createQuery(SearchQuery.Criterion criterion) throws MailboxException {
+    private List<Multimap<MessageFields, String>> createQuery(SearchQuery.Criterion criterion) throws MailboxException {
         if (criterion instanceof SearchQuery.InternalDateCriterion) {
             try {
-                return createInternalDateQuery((SearchQuery.InternalDateCriterion) criterion);
+                return Collections.singletonList(createInternalDateQuery((SearchQuery.InternalDateCriterion) criterion));
             } catch (ParseException e) {
                 throw new MailboxException("Date not in valid format: ", e);
             }
@@ -210,18 +539,18 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
             return createTextQuery((SearchQuery.TextCriterion) criterion);
         } else if (criterion instanceof SearchQuery.FlagCriterion) {
             SearchQuery.FlagCriterion crit = (SearchQuery.FlagCriterion) criterion;
-            return createFlagQuery(toString(crit.getFlag()), crit.getOperator().isSet());
+            return Collections.singletonList(createFlagQuery(toString(crit.getFlag()), crit.getOperator().isSet()));
         } else if (criterion instanceof SearchQuery.CustomFlagCriterion) {
             SearchQuery.CustomFlagCriterion crit = (SearchQuery.CustomFlagCriterion) criterion;
-            return createFlagQuery(crit.getFlag(), crit.getOperator().isSet());
+            return Collections.singletonList(createFlagQuery(crit.getFlag(), crit.getOperator().isSet()));
         } else if (criterion instanceof SearchQuery.HeaderCriterion) {
             return createHeaderQuery((SearchQuery.HeaderCriterion) criterion);
         } else if (criterion instanceof SearchQuery.UidCriterion) {
-            return createUidQuery((SearchQuery.UidCriterion) criterion);
+            return Collections.singletonList(createUidQuery((SearchQuery.UidCriterion) criterion));
         } else if (criterion instanceof SearchQuery.ConjunctionCriterion) {
-            return createConjunctionQuery((SearchQuery.ConjunctionCriterion) criterion);
+            return Collections.singletonList(createConjunctionQuery((SearchQuery.ConjunctionCriterion) criterion));
         } else if (criterion instanceof SearchQuery.AllCriterion) {//searches on all mail uids on that mailbox
-            return ArrayListMultimap.create();
+            return Collections.emptyList();
         }
 
         throw new UnsupportedSearchException();
@@ -240,13 +569,10 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
         final Multimap<MessageFields, String> uidQuery = ArrayListMultimap.create();
         SearchQuery.NumericRange[] ranges = crit.getOperator().getRange();
         for (SearchQuery.NumericRange range : ranges)
-            if (range.getHighValue() == range.getLowValue()) {
-                if (range.getHighValue() == Long.MAX_VALUE)
-                    return ArrayListMultimap.create();
-                else
-                    uidQuery.put(UID_FIELD, "" + addLongPadding(range.getHighValue()));
-            } else
-                uidQuery.put(UID_FIELD, addLongPadding(range.getLowValue()) + "" + addLongPadding(range.getHighValue()));
+            if (range.getHighValue() == range.getLowValue() && range.getHighValue() == Long.MAX_VALUE)
+                return ArrayListMultimap.create();
+            else
+                uidQuery.put(UID_FIELD, range.getLowValue() + ":" + range.getHighValue());
         return uidQuery;
     }
 
@@ -292,26 +618,29 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
 
     private Multimap<MessageFields, String> createFlagQuery(String flag, boolean isSet) {
         final Multimap<MessageFields, String> flagsQuery = ArrayListMultimap.create();
-        flagsQuery.put(FLAGS_FIELD, isSet ? flag : EMPTY_COLUMN_VALUE.toString());
+        flagsQuery.put(FLAGS_FIELD, (isSet ? "1" : "0") + flag);
         return flagsQuery;
     }
 
-    private Multimap<MessageFields, String> createTextQuery(SearchQuery.TextCriterion crit) {
-        String value = crit.getOperator().getValue().toUpperCase(Locale.ENGLISH);
-        Multimap<MessageFields, String> textQuery = ArrayListMultimap.create();
-        switch (crit.getType()) {
-            case BODY:
-                tokenize(BODY_FIELD, value, textQuery);
-                break;
-            case FULL:
-                tokenize(BODY_FIELD, value, textQuery);
-                tokenize(HEADERS_FIELD, value, textQuery);
-                break;
+    /**
+     * every token of the text has to be found, in the body or in the headers for a full text search
+     */
+    private List<Multimap<MessageFields, String>> createTextQuery(SearchQuery.TextCriterion crit) {
+        String value = crit.getOperator().getValue();
+        Multimap<MessageFields, String> tokens = ArrayListMultimap.create();
+        tokenize(BODY_FIELD, value, tokens);
+        List<Multimap<MessageFields, String>> textQueries = Lists.newArrayList();
+        for (String token : tokens.values()) {
+            Multimap<MessageFields, String> textQuery = ArrayListMultimap.create();
+            textQuery.put(BODY_FIELD, token);
+            if (crit.getType() == SearchQuery.Scope.FULL)
+                textQuery.put(HEADERS_FIELD, token);
+            textQueries.add(textQuery);
         }
-        return textQuery;
+        return textQueries;
     }
 
-    private Multimap<MessageFields, String> createHeaderQuery(SearchQuery.HeaderCriterion crit) throws UnsupportedSearchException {
+    private List<Multimap<MessageFields, String>> createHeaderQuery(SearchQuery.HeaderCriterion crit) throws UnsupportedSearchException {
         SearchQuery.HeaderOperator op = crit.getOperator();
         MessageFields field = getHeaderField(crit.getHeaderName());
         Multimap<MessageFields, String> headerQuery = ArrayListMultimap.create();
@@ -321,28 +650,31 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
         } else if (op instanceof SearchQuery.ExistsOperator)
             headerQuery.put(field, "");
         else if (op instanceof SearchQuery.AddressOperator) {
-            String address = ((SearchQuery.AddressOperator) op).getAddress().toUpperCase(Locale.ENGLISH);
+            String address = ((SearchQuery.AddressOperator) op).getAddress();
             tokenize(field, address, headerQuery);
+            // every token of the address has to be found in the header
+            List<Multimap<MessageFields, String>> addressQueries = Lists.newArrayList();
+            for (String token : headerQuery.values()) {
+                Multimap<MessageFields, String> addressQuery = ArrayListMultimap.create();
+                addressQuery.put(field, token);
+                addressQueries.add(addressQuery);
+            }
+            return addressQueries;
         } else // Operator not supported
             throw new UnsupportedSearchException();
-        return headerQuery;
-    }
-
-    private static void tokenize(MessageFields field, String value, Multimap<MessageFields, String> map) {
-        tokenize(field, new StringReader(value), map);
+        return Collections.singletonList(headerQuery);
     }
 
-    private static void tokenize(MessageFields field, Reader reader, Multimap<MessageFields, String> map) {
-        UAX29URLEmailTokenizer tokenizer = new UAX29URLEmailTokenizer(Version.LUCENE_40, reader);
-        tokenizer.addAttribute(CharTermAttribute.class);
-        try {
-            while (tokenizer.incrementToken())
-                map.put(field, tokenizer.getAttribute(CharTermAttribute.class).toString().toUpperCase(Locale.ENGLISH));
-        } catch (IOException ioe) {
-            LOG.warn("Problem tokenizing " + field.name(), ioe);
-        } finally {
-            IOUtils.closeQuietly(tokenizer);
-        }
+    /**
+     * the terms of a query, analyzed the same way as the indexed text
+     */
+    private static void tokenize(MessageFields field, String value, final Multimap<MessageFields, String> map) {
+        TermAnalyzer.get().analyze(field, value, new TermSink() {
+            @Override
+            public void term(MessageFields field, char[] buffer, int offset, int length) {
+                map.put(field, new String(buffer, offset, length));
+            }
+        });
     }
 
     private MessageFields getHeaderField(String headerName) {
@@ -359,8 +691,15 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
         return PREFIX_HEADER_FIELD;
     }
 
-    private ArrayListMultimap<MessageFields, String> parseFullContent(final Message<UUID> message) throws MailboxException {
-        final ArrayListMultimap<MessageFields, String> map = ArrayListMultimap.create();
+    /**
+     * gives the terms of the headers and of the text body parts to the sink, the parts are only read up to
+     * {@link HBaseIndexStore#getMaxPartSize()} and {@link HBaseIndexStore#getMaxMessageSize()} bytes
+     */
+    private void parseFullContent(final Message<UUID> message, final TermSink map) throws MailboxException {
+        final TermAnalyzer analyzer = TermAnalyzer.get();
+        final long maxMessageSize = store.getMaxMessageSize();
+        // bytes of body parts the message can still index, unused when there is no limit
+        final long[] remaining = new long[]{maxMessageSize};
 
         // content handler which will mailbox the headers and the body of the message
         SimpleContentHandler handler = new SimpleContentHandler() {
@@ -373,11 +712,11 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
                 String firstToDisplay = "";
 
                 for (org.apache.james.mime4j.stream.Field f : header) {
-                    String headerName = f.getName().toUpperCase(Locale.ENGLISH);
-                    String headerValue = f.getBody().toUpperCase(Locale.ENGLISH);
-                    String fullValue = f.toString().toUpperCase(Locale.ENGLISH);
-                    tokenize(HEADERS_FIELD, fullValue, map);
-                    tokenize(PREFIX_HEADER_FIELD, headerValue, map);
+                    // the analyzer folds the case of the terms
+                    String headerName = f.getName();
+                    String headerValue = f.getBody();
+                    analyzer.analyze(HEADERS_FIELD, f.toString(), map);
+                    analyzer.analyze(PREFIX_HEADER_FIELD, headerValue, map);
 
                     MessageFields field = getHeaderField(headerName);
 
@@ -390,8 +729,7 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
                             Address address = aList.get(i);
                             if (address instanceof org.apache.james.mime4j.dom.address.Mailbox) {
                                 org.apache.james.mime4j.dom.address.Mailbox mailbox = (org.apache.james.mime4j.dom.address.Mailbox) address;
-                                String value = AddressFormatter.DEFAULT.encode(mailbox).toUpperCase(Locale.ENGLISH);
-                                tokenize(field, value, map);
+                                analyzer.analyze(field, AddressFormatter.DEFAULT.encode(mailbox), map);
                                 if (i == 0) {
                                     String mailboxAddress = SearchUtil.getMailboxAddress(mailbox);
                                     String mailboxDisplay = SearchUtil.getDisplayAddress(mailbox);
@@ -414,8 +752,7 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
                                 MailboxList mList = ((Group) address).getMailboxes();
                                 for (int a = 0; a < mList.size(); a++) {
                                     org.apache.james.mime4j.dom.address.Mailbox mailbox = mList.get(a);
-                                    String value = AddressFormatter.DEFAULT.encode(mailbox).toUpperCase(Locale.ENGLISH);
-                                    map.put(field, value);
+                                    analyzer.upperCaseTerm(field, AddressFormatter.DEFAULT.encode(mailbox), map);
 
                                     if (i == 0 && a == 0) {
                                         String mailboxAddress = SearchUtil.getMailboxAddress(mailbox);
@@ -439,19 +776,18 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
                             }
                         }
 
-                        tokenize(field, headerValue, map);
+                        analyzer.analyze(field, headerValue, map);
 
                     } else if (headerName.equalsIgnoreCase("Subject")) {
-                        map.put(BASE_SUBJECT_FIELD, SearchUtil.getBaseSubject(headerValue));
+                        // the base subject leaders and trailers are matched whatever their case
+                        analyzer.upperCaseTerm(BASE_SUBJECT_FIELD, SearchUtil.getBaseSubject(headerValue), map);
                     }
                 }
-                map.put(SENT_DATE_FIELD, addLongPadding(message.getInternalDate().getTime()));
-                map.put(FIRST_FROM_MAILBOX_NAME_FIELD, firstFromMailbox);
-                map.put(FIRST_TO_MAILBOX_NAME_FIELD, firstToMailbox);
-                map.put(FIRST_CC_MAILBOX_NAME_FIELD, firstCcMailbox);
-                map.put(FIRST_FROM_MAILBOX_DISPLAY_FIELD, firstFromDisplay);
-                map.put(FIRST_TO_MAILBOX_DISPLAY_FIELD, firstToDisplay);
-                map.put(UID_FIELD, addLongPadding(message.getUid()));
+                TermAnalyzer.term(FIRST_FROM_MAILBOX_NAME_FIELD, firstFromMailbox, map);
+                TermAnalyzer.term(FIRST_TO_MAILBOX_NAME_FIELD, firstToMailbox, map);
+                TermAnalyzer.term(FIRST_CC_MAILBOX_NAME_FIELD, firstCcMailbox, map);
+                TermAnalyzer.term(FIRST_FROM_MAILBOX_DISPLAY_FIELD, firstFromDisplay, map);
+                TermAnalyzer.term(FIRST_TO_MAILBOX_DISPLAY_FIELD, firstToDisplay, map);
             }
 
             @Override
@@ -470,8 +806,15 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
                         charset = Charset.forName(DEFAULT_ENCODING);
                     }
 
+                    long limit = store.getMaxPartSize();
+                    if (maxMessageSize >= 0)
+                        limit = limit < 0 ? remaining[0] : Math.min(limit, remaining[0]);
+                    if (limit == 0)
+                        return;
+                    CappedInputStream part = new CappedInputStream(in, limit);
                     // Read the content one line after the other and add it to the document
-                    tokenize(BODY_FIELD, new BufferedReader(new InputStreamReader(in, charset)), map);
+                    analyzer.analyze(BODY_FIELD, new BufferedReader(new InputStreamReader(part, charset)), map);
+                    remaining[0] -= part.getCount();
                 }
             }
 
@@ -496,7 +839,6 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
             throw new MailboxException("Unable to mailbox content of message", e);
         }
 
-        return map;
     }
 
     /**
@@ -505,32 +847,19 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
      *
      * @param value
      * @return paddedLong
+     * @deprecated the numeric terms are written by {@link NumericTerms#encode(long)}, this is the legacy format
      */
+    @Deprecated
     public static String addLongPadding(long value) {
-        NumberFormat format = NumberFormat.getInstance(Locale.ENGLISH);
-        format.setMinimumIntegerDigits(19);
-        return format.format(value).replace(",", "");
-    }
-
-    private String parseFlagsContent(Message<?> message) {
-        return parseFlagsContent(message.createFlags());
+        return NumericTerms.legacyTerm(value);
     }
 
-    private String parseFlagsContent(Flags flags) {
-        final StringBuilder sb = new StringBuilder();
-        Flag[] systemFlags = flags.getSystemFlags();
-        String[] userFlags = flags.getUserFlags();
-
-        if (systemFlags.length == 0 && userFlags.length == 0)
-            sb.append(EMPTY_COLUMN_VALUE.toString());
-        else {
-            for (Flag systemFlag : systemFlags)
-                sb.append(toString(systemFlag));
-
-            for (String userFlag : userFlags)
-                sb.append(userFlag);
-        }
-        return sb.toString();
+    private List<String> flagNames(Flags flags) {
+        final List<String> names = Lists.newArrayList();
+        for (Flag systemFlag : flags.getSystemFlags())
+            names.add(toString(systemFlag));
+        Collections.addAll(names, flags.getUserFlags());
+        return names;
     }
 
     /**
@@ -551,7 +880,7 @@ public class MessageSearchIndexListener extends ListeningMessageSearchIndex<UUID
         } else if (RECENT.equals(flag)) {
             return "\\RECENT";
         } else if (SEEN.equals(flag)) {
-            return "\\FLAG";
+            return "\\SEEN";
         } else {
             return flag.toString();
         }
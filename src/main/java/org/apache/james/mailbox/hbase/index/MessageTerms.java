@@ -0,0 +1,72 @@
+package org.apache.james.mailbox.hbase.index;
+
+import com.google.common.collect.Lists;
+import org.apache.james.mailbox.hbase.store.MessageFields;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.UnicodeUtil;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The distinct terms of one message per field, encoded in UTF-8 the way the row keys hold them, with the
+ * number of times each was found. A term repeated in the message is a single posting. Large messages are
+ * indexed in chunks: the terms are cleared once their postings are written.
+ */
+final class MessageTerms implements TermSink {
+    private final Map<MessageFields, Map<ByteBuffer, int[]>> fields =
+            new EnumMap<MessageFields, Map<ByteBuffer, int[]>>(MessageFields.class);
+    private final BytesRef utf8 = new BytesRef();
+    private int size;
+
+    @Override
+    public void term(MessageFields field, char[] buffer, int offset, int length) {
+        UnicodeUtil.UTF16toUTF8(buffer, offset, length, utf8);
+        Map<ByteBuffer, int[]> terms = fields.get(field);
+        if (terms == null) {
+            terms = new LinkedHashMap<ByteBuffer, int[]>();
+            fields.put(field, terms);
+        }
+        // the repeated terms are found without copying them
+        int[] count = terms.get(ByteBuffer.wrap(utf8.bytes, utf8.offset, utf8.length));
+        if (count == null) {
+            byte[] term = new byte[utf8.length];
+            System.arraycopy(utf8.bytes, utf8.offset, term, 0, utf8.length);
+            terms.put(ByteBuffer.wrap(term), new int[]{1});
+            size++;
+        } else {
+            count[0]++;
+        }
+    }
+
+    /**
+     * @return number of distinct (field, term) pairs
+     */
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        fields.clear();
+        size = 0;
+    }
+
+    Map<MessageFields, Map<ByteBuffer, int[]>> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return the distinct terms of all the fields
+     */
+    Collection<byte[]> terms() {
+        List<byte[]> terms = Lists.newArrayList();
+        for (Map<ByteBuffer, int[]> fieldTerms : fields.values())
+            for (ByteBuffer term : fieldTerms.keySet())
+                terms.add(term.array());
+        return terms;
+    }
+}
@@ -0,0 +1,257 @@
+package org.apache.james.mailbox.hbase.index;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import org.apache.james.mailbox.hbase.store.MessageFields;
+import org.apache.james.mailbox.hbase.store.UidSet;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.james.mailbox.hbase.store.MessageFields.FLAGS_FIELD;
+
+/**
+ * Results of the recent searches of the most recently searched mailboxes, IMAP clients repeat the same
+ * searches on every poll. The mailboxes are evicted in LRU order, and so are the queries of one mailbox.
+ * <ul>
+ * <li>a new message can match any query: all the results of the mailbox are dropped</li>
+ * <li>a flag update only changes the results of the queries with a flag criterion</li>
+ * <li>deleted messages match nothing: they are removed from the cached results</li>
+ * </ul>
+ * Only the writes going through this listener are seen, the cache is meant for setups where the
+ * searches of a mailbox and its changes go through the same server.
+ */
+public class SearchResultCache {
+    private final Cache<UUID, MailboxResults> mailboxes;
+    private final int maxQueries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong mailboxEvictions = new AtomicLong();
+    private final AtomicLong queryEvictions = new AtomicLong();
+    /**
+     * the versions are unique across the mailboxes, so a mailbox evicted and cached again during a search
+     * does not get back the version the search has seen
+     */
+    private final AtomicLong versions = new AtomicLong();
+
+    /**
+     * @param maxMailboxes number of mailboxes whose results are kept
+     * @param maxQueries   number of queries kept per mailbox
+     */
+    public SearchResultCache(int maxMailboxes, int maxQueries) {
+        this.mailboxes = CacheBuilder.newBuilder().maximumSize(maxMailboxes)
+                .removalListener(new RemovalListener<UUID, MailboxResults>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<UUID, MailboxResults> notification) {
+                        if (notification.wasEvicted())
+                            mailboxEvictions.incrementAndGet();
+                    }
+                }).build();
+        this.maxQueries = maxQueries;
+    }
+
+    /**
+     * the queries of a criterion are alternatives and the criteria are intersected, neither order
+     * changes the result so both are sorted
+     *
+     * @param criteria
+     * @return the key of the criteria
+     */
+    public static String normalize(List<Multimap<MessageFields, String>> criteria) {
+        List<String> normalized = Lists.newArrayListWithCapacity(criteria.size());
+        for (Multimap<MessageFields, String> criterion : criteria) {
+            List<String> queries = Lists.newArrayListWithCapacity(criterion.size());
+            for (Map.Entry<MessageFields, String> query : criterion.entries())
+                queries.add(query.getKey().id + ":" + query.getValue());
+            Collections.sort(queries);
+            StringBuilder key = new StringBuilder();
+            for (String query : queries)
+                key.append(query).append('\n');
+            normalized.add(key.toString());
+        }
+        Collections.sort(normalized);
+        StringBuilder key = new StringBuilder();
+        for (String criterion : normalized)
+            key.append(criterion).append('\u0000');
+        return key.toString();
+    }
+
+    public static boolean isFlagDependent(List<Multimap<MessageFields, String>> criteria) {
+        for (Multimap<MessageFields, String> criterion : criteria)
+            if (criterion.containsKey(FLAGS_FIELD))
+                return true;
+        return false;
+    }
+
+    /**
+     * @return the version to give back to {@link #put} once the search is done
+     */
+    public long version(UUID mailboxId) {
+        MailboxResults results = mailboxes.getIfPresent(mailboxId);
+        if (results == null) {
+            mailboxes.asMap().putIfAbsent(mailboxId, new MailboxResults(versions.incrementAndGet()));
+            results = mailboxes.getIfPresent(mailboxId);
+        }
+        // a version no mailbox has, when the mailbox is already evicted again
+        return results == null ? -1 : results.version();
+    }
+
+    /**
+     * @return the cached result of the query, null when missing
+     */
+    public UidSet get(UUID mailboxId, String query) {
+        MailboxResults results = mailboxes.getIfPresent(mailboxId);
+        Entry entry = results == null ? null : results.get(query);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.uids;
+    }
+
+    /**
+     * caches the result of a search, unless the mailbox has changed since the search started
+     *
+     * @param mailboxId
+     * @param query         normalized query
+     * @param flagDependent true if the query has a flag criterion
+     * @param version       the version of the mailbox before the search
+     * @param uids          the result, not modified afterwards
+     */
+    public void put(UUID mailboxId, String query, boolean flagDependent, long version, UidSet uids) {
+        MailboxResults results = mailboxes.getIfPresent(mailboxId);
+        if (results != null)
+            results.put(query, new Entry(uids, flagDependent), version);
+    }
+
+    /**
+     * a message has been added or indexed again
+     */
+    public void invalidate(UUID mailboxId) {
+        MailboxResults results = mailboxes.getIfPresent(mailboxId);
+        if (results != null)
+            results.clear(false);
+    }
+
+    /**
+     * flags of messages have changed
+     */
+    public void invalidateFlags(UUID mailboxId) {
+        MailboxResults results = mailboxes.getIfPresent(mailboxId);
+        if (results != null)
+            results.clear(true);
+    }
+
+    /**
+     * messages have been deleted, they are removed from the cached results
+     */
+    public void removeUids(UUID mailboxId, UidSet deleted) {
+        MailboxResults results = mailboxes.getIfPresent(mailboxId);
+        if (results != null)
+            results.remove(deleted);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of results dropped to make room, whole mailboxes and single queries
+     */
+    public long getEvictions() {
+        return mailboxEvictions.get() + queryEvictions.get();
+    }
+
+    public long getMailboxCount() {
+        return mailboxes.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SearchResultCache{hits=" + getHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + ", mailboxes=" + getMailboxCount() + "}";
+    }
+
+    private static final class Entry {
+        private final UidSet uids;
+        private final boolean flagDependent;
+
+        Entry(UidSet uids, boolean flagDependent) {
+            this.uids = uids;
+            this.flagDependent = flagDependent;
+        }
+    }
+
+    /**
+     * the queries of one mailbox in access order, every change of the mailbox bumps the version so a
+     * search which ran before the change can not cache its result afterwards
+     */
+    private final class MailboxResults {
+        private final LinkedHashMap<String, Entry> queries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= maxQueries)
+                    return false;
+                queryEvictions.incrementAndGet();
+                return true;
+            }
+        };
+        private long version;
+
+        MailboxResults(long version) {
+            this.version = version;
+        }
+
+        synchronized long version() {
+            return version;
+        }
+
+        synchronized Entry get(String query) {
+            return queries.get(query);
+        }
+
+        synchronized void put(String query, Entry entry, long searchVersion) {
+            if (searchVersion == version)
+                queries.put(query, entry);
+        }
+
+        synchronized void clear(boolean flagDependentOnly) {
+            version = versions.incrementAndGet();
+            if (!flagDependentOnly) {
+                queries.clear();
+                return;
+            }
+            Iterator<Entry> entries = queries.values().iterator();
+            while (entries.hasNext())
+                if (entries.next().flagDependent)
+                    entries.remove();
+        }
+
+        synchronized void remove(UidSet deleted) {
+            version = versions.incrementAndGet();
+            // the cached sets may be iterated by other searches, they are replaced rather than modified
+            Map<String, Entry> patched = new LinkedHashMap<String, Entry>();
+            for (Map.Entry<String, Entry> query : queries.entrySet()) {
+                UidSet uids = new UidSet(query.getValue().uids.size());
+                uids.addAll(query.getValue().uids);
+                uids.removeAll(deleted);
+                patched.put(query.getKey(), new Entry(uids, query.getValue().flagDependent));
+            }
+            queries.putAll(patched);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.apache.james.mailbox.hbase.index;
+
+import org.apache.james.mailbox.hbase.store.MessageFields;
+import org.apache.lucene.analysis.standard.UAX29URLEmailTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Locale;
+
+/**
+ * Splits text into upper case terms with one tokenizer which is reset for every value, so one instance
+ * is used by one thread at a time, see {@link #get()}. ASCII terms are folded in the term buffer of the
+ * tokenizer, the other ones the way {@link String#toUpperCase(Locale)} does, which can change their length.
+ */
+public final class TermAnalyzer {
+    private final static Logger LOG = LoggerFactory.getLogger(TermAnalyzer.class);
+
+    private static final ThreadLocal<TermAnalyzer> ANALYZERS = new ThreadLocal<TermAnalyzer>() {
+        @Override
+        protected TermAnalyzer initialValue() {
+            return new TermAnalyzer();
+        }
+    };
+
+    private final UAX29URLEmailTokenizer tokenizer;
+    private final CharTermAttribute termAttribute;
+
+    private TermAnalyzer() {
+        tokenizer = new UAX29URLEmailTokenizer(Version.LUCENE_40, new StringReader(""));
+        termAttribute = tokenizer.addAttribute(CharTermAttribute.class);
+        try {
+            // the tokenizer is given its reader by analyze, the one of the constructor is never read
+            tokenizer.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the analyzer of the current thread
+     */
+    public static TermAnalyzer get() {
+        return ANALYZERS.get();
+    }
+
+    public void analyze(MessageFields field, String value, TermSink sink) {
+        analyze(field, new StringReader(value), sink);
+    }
+
+    public void analyze(MessageFields field, Reader reader, TermSink sink) {
+        try {
+            tokenizer.setReader(reader);
+            tokenizer.reset();
+            while (tokenizer.incrementToken()) {
+                upperCase(termAttribute);
+                sink.term(field, termAttribute.buffer(), 0, termAttribute.length());
+            }
+            tokenizer.end();
+        } catch (IOException ioe) {
+            LOG.warn("Problem tokenizing " + field.name(), ioe);
+        } finally {
+            try {
+                tokenizer.close();
+            } catch (IOException e) {
+                LOG.debug("Problem closing the tokenizer of " + field.name(), e);
+            }
+        }
+    }
+
+    /**
+     * gives a value to the sink as one term, without splitting it
+     */
+    public static void term(MessageFields field, String value, TermSink sink) {
+        sink.term(field, value.toCharArray(), 0, value.length());
+    }
+
+    /**
+     * gives a value to the sink as one upper case term, without splitting it. The value is folded in the
+     * term buffer of the tokenizer, so this is not to be called from a sink given to {@link #analyze}.
+     */
+    public void upperCaseTerm(MessageFields field, String value, TermSink sink) {
+        termAttribute.setEmpty().append(value);
+        upperCase(termAttribute);
+        sink.term(field, termAttribute.buffer(), 0, termAttribute.length());
+    }
+
+    static void upperCase(CharTermAttribute term) {
+        char[] buffer = term.buffer();
+        int length = term.length();
+        for (int i = 0; i < length; i++) {
+            char c = buffer[i];
+            if (c >= 0x80) {
+                // rare, the upper case of some characters is longer than them
+                String upper = term.toString().toUpperCase(Locale.ENGLISH);
+                term.setEmpty().append(upper);
+                return;
+            }
+            if (c >= 'a' && c <= 'z')
+                buffer[i] = (char) (c - ('a' - 'A'));
+        }
+    }
+}
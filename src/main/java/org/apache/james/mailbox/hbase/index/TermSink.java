@@ -0,0 +1,17 @@
+package org.apache.james.mailbox.hbase.index;
+
+import org.apache.james.mailbox.hbase.store.MessageFields;
+
+/**
+ * Receives the terms of a message or of a query as they are produced by the {@link TermAnalyzer}.
+ */
+public interface TermSink {
+
+    /**
+     * @param field
+     * @param buffer holds the upper case term, only valid during the call
+     * @param offset
+     * @param length
+     */
+    void term(MessageFields field, char[] buffer, int offset, int length);
+}
@@ -0,0 +1,47 @@
+package org.apache.james.mailbox.hbase.store;
+
+import com.google.common.collect.Lists;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Value of the forward index row of a message: the row keys of all the term rows written for the
+ * message, without the mailboxId they all share, each one prefixed by its length as a vint.
+ */
+public final class DocumentTerms {
+
+    private DocumentTerms() {
+    }
+
+    /**
+     * @param suffixes field | term part of the rows
+     * @return encodedValue
+     * @throws IOException
+     */
+    public static byte[] encode(Collection<byte[]> suffixes) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        for (byte[] suffix : suffixes) {
+            WritableUtils.writeVInt(out, suffix.length);
+            out.write(suffix);
+        }
+        return Arrays.copyOf(out.getData(), out.getLength());
+    }
+
+    public static List<byte[]> decode(byte[] value) throws IOException {
+        List<byte[]> suffixes = Lists.newArrayList();
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(value, value.length);
+        while (in.getPosition() < value.length) {
+            byte[] suffix = new byte[WritableUtils.readVInt(in)];
+            in.readFully(suffix);
+            suffixes.add(suffix);
+        }
+        return suffixes;
+    }
+}
@@ -0,0 +1,163 @@
+package org.apache.james.mailbox.hbase.store;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.Collection;
+import java.util.Set;
+
+import static org.apache.james.mailbox.hbase.store.MessageFields.FLAGS_FIELD;
+import static org.apache.james.mailbox.hbase.store.MessageFields.FLAG_POSTING_FIELD;
+
+/**
+ * Flags are stored twice: the flags rows of the mailbox keep the flag names of every message in its uid
+ * column, and each flag has posting rows with one column per uid which has the flag set. Searches only read
+ * the posting rows, the flags rows are needed to know which posting rows to clear when the flags of a
+ * message change.
+ * <p/>
+ * Both kinds of rows are split in chunks of consecutive uids, so that a big mailbox does not end up with
+ * a few huge rows which every flag change hits:
+ * <ul>
+ * <li>flags rows: mailboxId | FLAGS_FIELD | chunk</li>
+ * <li>posting rows: mailboxId | FLAG_POSTING_FIELD | flag | 0x00 | chunk</li>
+ * </ul>
+ * where chunk is the 8 bytes of uid / chunkWidth. The width is part of the row keys, changing it
+ * requires the mailboxes to be reindexed.
+ * <p/>
+ * Older indexes kept the flags of the whole mailbox in one legacy flags row, mailboxId | FLAGS_FIELD, with the
+ * flag names of a message written back to back and no posting rows. Searches also read that row while
+ * {@link #LEGACY} is set, and {@link HBaseIndexStore#migrateFlags()} moves it to the current rows and drops
+ * the posting rows of the flags written before the chunks, mailboxId | FLAG_POSTING_FIELD | flag.
+ */
+public final class FlagPostings {
+    /**
+     * number of consecutive uids sharing a flags row and a posting row
+     */
+    public static final String CHUNK_WIDTH = "hbaluin.index.flags.chunk.width";
+    public static final long DEFAULT_CHUNK_WIDTH = 4096;
+    /**
+     * when true the flag searches also read the legacy flags rows, to be unset once the flags have been migrated
+     */
+    public static final String LEGACY = "hbaluin.index.flags.legacy";
+    /**
+     * when true {@link HBaseIndexStore#open} starts the migration of the legacy flags rows in the background
+     */
+    public static final String MIGRATE = "hbaluin.index.flags.migrate";
+    /**
+     * the system flags as the legacy rows wrote them, \Seen was written as \FLAG: it has to come after \FLAGGED
+     */
+    private static final String[][] LEGACY_SYSTEM_FLAGS = {
+            {"\\ANSWERED", "\\ANSWERED"}, {"\\DELETED", "\\DELETED"}, {"\\DRAFT", "\\DRAFT"},
+            {"\\FLAGGED", "\\FLAGGED"}, {"\\RECENT", "\\RECENT"}, {"\\SEEN", "\\SEEN"}, {"\\FLAG", "\\SEEN"}};
+    /**
+     * flag names are IMAP atoms, they can not contain a space
+     */
+    private static final char SEPARATOR = ' ';
+    /**
+     * ends the flag name in the posting rows so that the chunks of one flag are not mixed with a longer flag name
+     */
+    private static final byte TERMINATOR = 0x00;
+
+    private final long chunkWidth;
+
+    public FlagPostings(long chunkWidth) {
+        Preconditions.checkArgument(chunkWidth > 0, "the chunk width has to be positive");
+        this.chunkWidth = chunkWidth;
+    }
+
+    public byte[] flagsRow(byte[] mailboxId, long messageId) {
+        return RowKeys.row(mailboxId, FLAGS_FIELD.id, chunk(messageId));
+    }
+
+    public static byte[] legacyFlagsRow(byte[] mailboxId) {
+        return RowKeys.fieldPrefix(mailboxId, FLAGS_FIELD);
+    }
+
+    public static boolean isLegacyFlagsRow(byte[] row) {
+        return row.length == RowKeys.FIELD_PREFIX_LENGTH && row[RowKeys.MAILBOX_ID_LENGTH] == FLAGS_FIELD.id;
+    }
+
+    /**
+     * @param row
+     * @return true for the posting rows written before the chunks, mailboxId | FLAG_POSTING_FIELD | flag,
+     *         which lack the terminator of the flag name
+     */
+    public static boolean isLegacyPostingRow(byte[] row) {
+        if (row.length <= RowKeys.FIELD_PREFIX_LENGTH || row[RowKeys.MAILBOX_ID_LENGTH] != FLAG_POSTING_FIELD.id)
+            return false;
+        for (int i = RowKeys.FIELD_PREFIX_LENGTH; i < row.length; i++)
+            if (row[i] == TERMINATOR)
+                return false;
+        return true;
+    }
+
+    public byte[] postingRow(byte[] mailboxId, String flag, long messageId) {
+        return RowKeys.row(mailboxId, postingSuffix(flag, messageId));
+    }
+
+    public byte[] postingSuffix(String flag, long messageId) {
+        return Bytes.add(postingPrefix(flag), chunk(messageId));
+    }
+
+    /**
+     * @param mailboxId
+     * @param flag
+     * @return the common prefix of all the posting rows of the flag
+     */
+    public byte[] postingPrefix(byte[] mailboxId, String flag) {
+        return RowKeys.row(mailboxId, postingPrefix(flag));
+    }
+
+    private static byte[] postingPrefix(String flag) {
+        return Bytes.add(new byte[]{FLAG_POSTING_FIELD.id}, Bytes.toBytes(flag), new byte[]{TERMINATOR});
+    }
+
+    private byte[] chunk(long messageId) {
+        return Bytes.toBytes(messageId / chunkWidth);
+    }
+
+    public static String encode(Collection<String> flags) {
+        return Joiner.on(SEPARATOR).join(flags);
+    }
+
+    public static Set<String> decode(byte[] value) {
+        if (value == null)
+            return Sets.newHashSet();
+        return Sets.newHashSet(Splitter.on(SEPARATOR).omitEmptyStrings().split(Bytes.toString(value)));
+    }
+
+    /**
+     * reads a value of a legacy flags row: the system flags written back to back, followed by the user
+     * flags, which are read as a single flag since nothing separated them
+     *
+     * @param value
+     * @return the flag names, in the current spelling
+     */
+    public static Set<String> decodeLegacy(byte[] value) {
+        Set<String> flags = Sets.newHashSet();
+        if (value == null)
+            return flags;
+        // the names may also be separated, as written before the flags rows were chunked
+        for (String names : Splitter.on(SEPARATOR).omitEmptyStrings().split(Bytes.toString(value))) {
+            int position = 0;
+            boolean found = true;
+            while (found && position < names.length()) {
+                found = false;
+                for (String[] flag : LEGACY_SYSTEM_FLAGS) {
+                    if (names.startsWith(flag[0], position)) {
+                        flags.add(flag[1]);
+                        position += flag[0].length();
+                        found = true;
+                        break;
+                    }
+                }
+            }
+            if (position < names.length())
+                flags.add(names.substring(position));
+        }
+        return flags;
+    }
+}
@@ -1,137 +1,1431 @@
 package org.apache.james.mailbox.hbase.store;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Sets;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.*;
 import org.apache.hadoop.hbase.client.coprocessor.Batch;
-import org.apache.hadoop.hbase.filter.BinaryPrefixComparator;
-import org.apache.hadoop.hbase.filter.CompareFilter;
-import org.apache.hadoop.hbase.filter.RowFilter;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.james.mailbox.hbase.store.endpoint.CriteriaMatches;
 import org.apache.james.mailbox.hbase.store.endpoint.RowFilteringProtocol;
+import org.apache.james.mailbox.hbase.store.endpoint.SearchCriteria;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static org.apache.james.mailbox.hbase.store.HBaseNames.COLUMN_FAMILY;
+import static org.apache.james.mailbox.hbase.store.HBaseNames.INDEX_TABLE;
+import static org.apache.james.mailbox.hbase.store.MessageFields.DOCUMENT_FIELD;
 import static org.apache.james.mailbox.hbase.store.MessageFields.FLAGS_FIELD;
+import static org.apache.james.mailbox.hbase.store.MessageFields.GRAM_FIELD;
+import static org.apache.james.mailbox.hbase.store.MessageFields.SENT_DATE_FIELD;
+import static org.apache.james.mailbox.hbase.store.MessageFields.UID_FIELD;
 
+/**
+ * Access to the index table. The store is shared by all the mailbox sessions: every operation
+ * borrows a table handle from a {@link HTablePool} and gives it back when done, so no HTable
+ * instance is ever used by two threads at the same time.
+ */
 public class HBaseIndexStore {
     private static final Logger LOG = LoggerFactory.getLogger(HBaseIndexStore.class);
-    private static HBaseIndexStore store;
-    private static HTableInterface table;
+    /**
+     * size in bytes of the client side write buffer, puts are sent in one batch when it fills up
+     */
+    public static final String WRITE_BUFFER_SIZE = "hbaluin.index.write.buffer.size";
+    public static final long DEFAULT_WRITE_BUFFER_SIZE = 2 * 1024 * 1024;
+    /**
+     * size in bytes above which the write buffer takes no more puts, by default four times its flush size.
+     * When HBase can not be reached the puts are rejected instead of piling up on the heap.
+     */
+    public static final String WRITE_BUFFER_MAX_SIZE = "hbaluin.index.write.buffer.max.size";
+    /**
+     * number of times the puts of a failed multi-put are sent again before they are dropped
+     */
+    public static final String FLUSH_RETRIES = "hbaluin.index.flush.retries";
+    public static final int DEFAULT_FLUSH_RETRIES = 3;
+    /**
+     * maximum time in milliseconds a put can wait in the write buffer, 0 disables the periodic flush
+     */
+    public static final String FLUSH_INTERVAL = "hbaluin.index.flush.interval";
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    /**
+     * number of messages added by the search index listener between two flushes made by the adding thread,
+     * which gets the failure of the flush, 0 leaves the writes to the write buffer and the periodic flush
+     */
+    public static final String FLUSH_ADDS = "hbaluin.index.flush.adds";
+    public static final int DEFAULT_FLUSH_ADDS = 64;
+    /**
+     * time in milliseconds between two purges of the tombstones and of the gram rows of the mailboxes with
+     * deleted mails, 0 disables the purge
+     */
+    public static final String PURGE_INTERVAL = "hbaluin.index.purge.interval";
+    public static final long DEFAULT_PURGE_INTERVAL = 10 * 60 * 1000;
+    /**
+     * number of idle table handles kept in the pool
+     */
+    public static final String TABLE_POOL_SIZE = "hbaluin.index.pool.size";
+    public static final int DEFAULT_TABLE_POOL_SIZE = 16;
+    /**
+     * number of regions the index table is created with, the split keys divide the mailbox UUID keyspace
+     */
+    public static final String INITIAL_REGIONS = "hbaluin.index.regions";
+    public static final int DEFAULT_INITIAL_REGIONS = 16;
+    /**
+     * when true deletes only write tombstones, the cells are purged by
+     * {@link org.apache.james.mailbox.hbase.store.observer.IndexCompactionObserver} at compaction time
+     */
+    public static final String LAZY_DELETES = "hbaluin.index.delete.lazy";
+    /**
+     * number of mailboxes whose search results are cached by the search index listener, 0 disables the cache
+     */
+    public static final String SEARCH_CACHE_SIZE = "hbaluin.index.search.cache.size";
+    public static final int DEFAULT_SEARCH_CACHE_SIZE = 0;
+    /**
+     * number of search results cached per mailbox
+     */
+    public static final String SEARCH_CACHE_QUERIES = "hbaluin.index.search.cache.queries";
+    public static final int DEFAULT_SEARCH_CACHE_QUERIES = 16;
+
+    /**
+     * number of bytes of one body part which are indexed, the rest of the part is skipped, -1 for no limit
+     */
+    public static final String MAX_PART_SIZE = "hbaluin.index.part.max.size";
+    public static final long DEFAULT_MAX_PART_SIZE = 16 * 1024 * 1024;
+    /**
+     * number of bytes of the body parts of one message which are indexed, -1 for no limit
+     */
+    public static final String MAX_MESSAGE_SIZE = "hbaluin.index.message.max.size";
+    public static final long DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+    /**
+     * number of distinct terms of one message which are indexed, the later ones are skipped. The forward
+     * index row lists them all in one cell, the tokenizer keeps the terms under 256 characters so the
+     * default keeps the cell under the 10MB of hbase.client.keyvalue.maxsize.
+     */
+    public static final String MAX_MESSAGE_TERMS = "hbaluin.index.message.max.terms";
+    public static final int DEFAULT_MAX_MESSAGE_TERMS = 32768;
+    /**
+     * number of distinct terms of a message collected before their puts are handed to the write buffer
+     */
+    public static final String CHUNK_TERMS = "hbaluin.index.chunk.terms";
+    public static final int DEFAULT_CHUNK_TERMS = 4096;
+    /**
+     * number of threads parsing the messages of a bulk reindex
+     */
+    public static final String BULK_THREADS = "hbaluin.index.bulk.threads";
+    public static final int DEFAULT_BULK_THREADS = 4;
+    /**
+     * number of messages read from the mailbox and indexed between two checkpoints of a bulk reindex
+     */
+    public static final String BULK_BATCH_SIZE = "hbaluin.index.bulk.batch.size";
+    public static final int DEFAULT_BULK_BATCH_SIZE = 256;
+
+    private static final int SCANNER_CACHING = 500;
+    /**
+     * qualifier of the bulk indexing checkpoint, not a uid
+     */
+    private static final byte[] BULK_CHECKPOINT = Bytes.toBytes("bulk");
+
+    private static volatile HBaseIndexStore store;
 
-    private HBaseIndexStore() {
+    private final HTablePool pool;
+    private final TablePoolMetrics poolMetrics;
+    private final long writeBufferSize;
+    private final long writeBufferMaxSize;
+    private final int flushRetries;
+    /**
+     * hbase.client.keyvalue.maxsize, the size of the largest cell HTable accepts, -1 for no limit
+     */
+    private final int maxKeyValueSize;
+    private final boolean lazyDeletes;
+    private final boolean postingBlocks;
+    private final boolean termGrams;
+    private final long gramPurgeGrace;
+    private final boolean termFrequencies;
+    private final TermDictionary termDictionary;
+    private final FlagPostings flagPostings;
+    private final boolean legacyFlags;
+    private final int searchCacheSize;
+    private final long maxPartSize;
+    private final long maxMessageSize;
+    private final int chunkTerms;
+    private final int maxMessageTerms;
+    private final int searchCacheQueries;
+    private final int bulkThreads;
+    private final int bulkBatchSize;
+    private final int flushAdds;
+    private final LinkedBlockingDeque<Put> writeBuffer = new LinkedBlockingDeque<Put>();
+    private final AtomicLong writeBufferHeapSize = new AtomicLong();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private ScheduledExecutorService flusher;
+    private ScheduledExecutorService purger;
+    /**
+     * mailboxes whose tombstones are not all purged yet, only the ones marked since the store was opened
+     */
+    private final Set<byte[]> tombstonedMailboxes = new ConcurrentSkipListSet<byte[]>(Bytes.BYTES_COMPARATOR);
+    /**
+     * mailboxes whose gram rows may list dead terms, with the time their last term cells were dropped
+     */
+    private final ConcurrentMap<byte[], Long> gramPurges = new ConcurrentSkipListMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+    /**
+     * failure of the last periodic flush, null once a flush has gone through
+     */
+    private final AtomicReference<IOException> flushFailure = new AtomicReference<IOException>();
+    /**
+     * failure for the puts dropped since the last {@link #flushToStore()}, which reports it
+     */
+    private final AtomicReference<IOException> droppedPuts = new AtomicReference<IOException>();
+    /**
+     * consecutive failures of the batch at the head of the write buffer, guarded by flushLock
+     */
+    private int failedFlushes;
+
+    private HBaseIndexStore(Configuration configuration) {
+        int poolSize = configuration.getInt(TABLE_POOL_SIZE, DEFAULT_TABLE_POOL_SIZE);
+        this.pool = new HTablePool(configuration, poolSize);
+        this.poolMetrics = new TablePoolMetrics(poolSize);
+        this.writeBufferSize = configuration.getLong(WRITE_BUFFER_SIZE, DEFAULT_WRITE_BUFFER_SIZE);
+        this.writeBufferMaxSize = Math.max(configuration.getLong(WRITE_BUFFER_MAX_SIZE, 4 * writeBufferSize),
+                writeBufferSize);
+        this.flushRetries = Math.max(configuration.getInt(FLUSH_RETRIES, DEFAULT_FLUSH_RETRIES), 0);
+        this.maxKeyValueSize = configuration.getInt("hbase.client.keyvalue.maxsize", -1);
+        this.lazyDeletes = configuration.getBoolean(LAZY_DELETES, false);
+        this.postingBlocks = configuration.getBoolean(PostingBlocks.ENABLED, false);
+        if (configuration.getBoolean(TermDictionary.ENABLED, false)) {
+            this.termDictionary = new TermDictionary(
+                    configuration.getInt(TermDictionary.CACHE_SIZE, TermDictionary.DEFAULT_CACHE_SIZE));
+            // the substring searches find the terms, and then their ids, through the gram rows
+            this.termGrams = true;
+        } else {
+            this.termDictionary = null;
+            this.termGrams = configuration.getBoolean(TermGrams.ENABLED, false);
+        }
+        this.gramPurgeGrace = configuration.getLong(TermGrams.PURGE_GRACE, TermGrams.DEFAULT_PURGE_GRACE);
+        this.flagPostings = new FlagPostings(configuration.getLong(FlagPostings.CHUNK_WIDTH, FlagPostings.DEFAULT_CHUNK_WIDTH));
+        this.legacyFlags = configuration.getBoolean(FlagPostings.LEGACY, true);
+        this.termFrequencies = configuration.getBoolean(TermFrequency.ENABLED, false);
+        this.maxPartSize = configuration.getLong(MAX_PART_SIZE, DEFAULT_MAX_PART_SIZE);
+        this.maxMessageSize = configuration.getLong(MAX_MESSAGE_SIZE, DEFAULT_MAX_MESSAGE_SIZE);
+        this.chunkTerms = Math.max(configuration.getInt(CHUNK_TERMS, DEFAULT_CHUNK_TERMS), 1);
+        this.maxMessageTerms = Math.max(configuration.getInt(MAX_MESSAGE_TERMS, DEFAULT_MAX_MESSAGE_TERMS), 1);
+        this.bulkThreads = Math.max(configuration.getInt(BULK_THREADS, DEFAULT_BULK_THREADS), 1);
+        this.bulkBatchSize = Math.max(configuration.getInt(BULK_BATCH_SIZE, DEFAULT_BULK_BATCH_SIZE), 1);
+        this.flushAdds = Math.max(configuration.getInt(FLUSH_ADDS, DEFAULT_FLUSH_ADDS), 0);
+        this.searchCacheSize = configuration.getInt(SEARCH_CACHE_SIZE, DEFAULT_SEARCH_CACHE_SIZE);
+        this.searchCacheQueries = configuration.getInt(SEARCH_CACHE_QUERIES, DEFAULT_SEARCH_CACHE_QUERIES);
     }
 
-    public static synchronized HBaseIndexStore getInstance(final Configuration configuration)
+    public static HBaseIndexStore getInstance(final Configuration configuration)
             throws IOException {
-        if (store == null) {
-            store = new HBaseIndexStore();
-            HBaseAdmin admin = new HBaseAdmin(configuration);
+        HBaseIndexStore instance = store;
+        if (instance == null) {
+            synchronized (HBaseIndexStore.class) {
+                if (store == null)
+                    store = open(configuration);
+                instance = store;
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * opens a store which is not shared, with its own write buffer and table handles, for the clients
+     * whose settings differ from the ones of {@link #getInstance}. The tables are created when missing.
+     *
+     * @param configuration
+     * @return store
+     * @throws IOException
+     */
+    public static HBaseIndexStore open(Configuration configuration) throws IOException {
+        IndexSchema schema = IndexSchema.fromConfiguration(configuration);
+        HBaseAdmin admin = new HBaseAdmin(configuration);
+        try {
+            if (!admin.tableExists(INDEX_TABLE.name)) {
+                HTableDescriptor htd = new HTableDescriptor(INDEX_TABLE.name);
+                htd.addFamily(schema.createColumnDescriptor());
+                htd.setValue(HTableDescriptor.SPLIT_POLICY, MailboxPrefixSplitPolicy.class.getName());
+                admin.createTable(htd, splitKeys(configuration.getInt(INITIAL_REGIONS, DEFAULT_INITIAL_REGIONS)));
+            } else if (configuration.getBoolean(IndexSchema.MIGRATE, false)) {
+                schema.migrate(admin);
+            }
+            if (configuration.getBoolean(TermDictionary.ENABLED, false)
+                    && !admin.tableExists(TermDictionary.TERMS_TABLE))
+                admin.createTable(TermDictionary.createTableDescriptor());
+        } finally {
+            admin.close();
+        }
+
+        HBaseIndexStore created = new HBaseIndexStore(configuration);
+        created.startFlusher(configuration.getLong(FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL));
+        created.startPurger(configuration.getLong(PURGE_INTERVAL, DEFAULT_PURGE_INTERVAL));
+        if (configuration.getBoolean(NumericTerms.MIGRATE, false))
+            created.startNumericMigration();
+        if (configuration.getBoolean(FlagPostings.MIGRATE, false))
+            created.startFlagsMigration();
+        return created;
+    }
 
-            HTableDescriptor htd = new HTableDescriptor(HBaseNames.INDEX_TABLE.name);
-            HColumnDescriptor columnDescriptor = new HColumnDescriptor(COLUMN_FAMILY.name);
-            htd.addFamily(columnDescriptor);
-            admin.createTable(htd);
-            table = new HTable(configuration, HBaseNames.INDEX_TABLE.name);
+    /**
+     * mailbox ids are random UUIDs, so the split keys divide the first 8 bytes of the row keys evenly
+     *
+     * @param regions
+     * @return splitKeys or null for a single region
+     */
+    static byte[][] splitKeys(int regions) {
+        if (regions <= 1)
+            return null;
+        byte[][] splits = new byte[regions - 1][];
+        BigInteger keyspace = BigInteger.ONE.shiftLeft(64);
+        for (int i = 1; i < regions; i++) {
+            BigInteger boundary = keyspace.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(regions));
+            splits[i - 1] = Bytes.toBytes(boundary.longValue());
         }
-        return store;
+        return splits;
+    }
+
+    private void startFlusher(long interval) {
+        if (interval <= 0)
+            return;
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hbaluin-index-flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    // the next caller of storeMail flushes itself and gets the failure
+                    flushFailure.set(e);
+                    LOG.warn("Periodic flush of the index write buffer has failed.", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void startPurger(long interval) {
+        if (interval <= 0)
+            return;
+        purger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "hbaluin-index-purger");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        purger.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                int dropped = 0;
+                for (byte[] mailboxId : tombstonedMailboxes) {
+                    try {
+                        int purged = purgeTombstones(mailboxId);
+                        // the compactions have dropped the term cells of these uids
+                        if (purged > 0 && termGrams)
+                            gramPurges.put(mailboxId, System.currentTimeMillis());
+                        dropped += purged;
+                        // the cells of the other tombstones are not compacted away yet
+                        if (!hasTombstones(mailboxId))
+                            tombstonedMailboxes.remove(mailboxId);
+                    } catch (IOException e) {
+                        LOG.warn("Purge of the tombstones of mailbox " + Bytes.toStringBinary(mailboxId)
+                                + " has failed.", e);
+                    }
+                }
+                if (dropped > 0)
+                    LOG.info("Purged " + dropped + " tombstones of the index.");
+                purgeGrams();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * purges the gram rows of the mailboxes whose term cells were dropped longer than the grace ago
+     */
+    private void purgeGrams() {
+        long before = System.currentTimeMillis() - gramPurgeGrace;
+        int dropped = 0;
+        for (Map.Entry<byte[], Long> mailbox : gramPurges.entrySet()) {
+            // a mailbox with newer deletes waits for the next run
+            if (mailbox.getValue() >= before || !gramPurges.remove(mailbox.getKey(), mailbox.getValue()))
+                continue;
+            try {
+                dropped += purgeGrams(mailbox.getKey());
+            } catch (IOException e) {
+                gramPurges.putIfAbsent(mailbox.getKey(), mailbox.getValue());
+                LOG.warn("Purge of the gram rows of mailbox " + Bytes.toStringBinary(mailbox.getKey())
+                        + " has failed.", e);
+            }
+        }
+        if (dropped > 0)
+            LOG.info("Purged " + dropped + " dead terms from the gram rows of the index.");
+    }
+
+    private void startNumericMigration() {
+        Thread migration = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LOG.info("Migrated " + migrateNumericTerms() + " legacy numeric rows of the index.");
+                } catch (IOException e) {
+                    LOG.warn("Migration of the legacy numeric rows of the index has failed.", e);
+                }
+            }
+        }, "hbaluin-numeric-migration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    private void startFlagsMigration() {
+        Thread migration = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LOG.info("Migrated the flags of " + migrateFlags() + " messages of the legacy flags rows.");
+                } catch (IOException e) {
+                    LOG.warn("Migration of the legacy flags rows of the index has failed.", e);
+                }
+            }
+        }, "hbaluin-flags-migration");
+        migration.setDaemon(true);
+        migration.start();
     }
 
     public Object clone() throws CloneNotSupportedException {
         throw new CloneNotSupportedException();
     }
 
+    private HTableInterface getTable() {
+        return getTable(INDEX_TABLE.name);
+    }
+
+    private HTableInterface getTable(byte[] tableName) {
+        HTableInterface table = pool.getTable(tableName);
+        poolMetrics.acquired();
+        return table;
+    }
+
+    private void release(HTableInterface table) throws IOException {
+        poolMetrics.released();
+        // closing a pooled table hands it back to the pool
+        table.close();
+    }
+
     /**
-     * writes the rows as puts in HBase where the qualifier is composed of the mailID
+     * @return in use and peak counters of the table pool
+     */
+    public TablePoolMetrics getPoolMetrics() {
+        return poolMetrics;
+    }
+
+    /**
+     * writes the rows as puts in HBase where the qualifier is composed of the mailID.
+     * The puts are only buffered on the client, they are sent as a multi-put when the write buffer
+     * fills up, on the periodic flush or before the next read through {@link #flushToStore()}.
+     * After a failed periodic flush the caller flushes before buffering its puts, so the failure
+     * reaches it instead of its puts piling up behind the ones which could not be sent.
+     * The puts HTable would reject are logged and dropped, they fail the next {@link #flushToStore()}.
      *
      * @param puts
-     * @throws IOException
+     * @throws IOException when the write buffer is full and can not be flushed, none of the puts is buffered
      */
     public void storeMail(List<Put> puts) throws IOException {
+        if (flushFailure.get() != null)
+            flushToStore();
+        List<Put> valid = Lists.newArrayListWithCapacity(puts.size());
+        long size = 0;
         for (Put put : puts) {
-            table.put(put);
+            if (!isValid(put))
+                continue;
+            valid.add(put);
+            size += put.heapSize();
+        }
+        if (writeBufferHeapSize.get() + size > writeBufferMaxSize) {
+            flushToStore();
+            if (writeBufferHeapSize.get() + size > writeBufferMaxSize)
+                throw new IOException("The index write buffer holds " + writeBufferHeapSize.get()
+                        + " bytes, no room for " + size + " more.");
+        }
+        writeBuffer.addAll(valid);
+        if (writeBufferHeapSize.addAndGet(size) >= writeBufferSize) {
+            try {
+                flush();
+            } catch (IOException e) {
+                // the puts of the caller are buffered, the next caller flushes first and gets the failure
+                flushFailure.set(e);
+                LOG.warn("Flush of the full index write buffer has failed.", e);
+            }
+        }
+    }
+
+    /**
+     * the checks of HTable.validatePut, a put failing them would fail its whole multi-put every time
+     */
+    private boolean isValid(Put put) {
+        String problem = null;
+        if (put.isEmpty()) {
+            problem = "it has no column";
+        } else if (maxKeyValueSize > 0) {
+            for (List<KeyValue> keyValues : put.getFamilyMap().values())
+                for (KeyValue keyValue : keyValues)
+                    if (keyValue.getLength() > maxKeyValueSize)
+                        problem = "a cell of " + keyValue.getLength() + " bytes is above hbase.client.keyvalue.maxsize";
         }
+        if (problem == null)
+            return true;
+        LOG.error("Dropped the index put of row " + Bytes.toStringBinary(put.getRow()) + ", " + problem + ".");
+        dropped(1, null);
+        return false;
+    }
+
+    /**
+     * records puts which will never be written, for the next {@link #flushToStore()} to report
+     */
+    private void dropped(int count, Throwable cause) {
+        IOException failure = new IOException(count + " index puts were dropped, see the log.");
+        if (cause != null)
+            failure.initCause(cause);
+        droppedPuts.compareAndSet(null, failure);
     }
 
     Iterator<Long> retrieveMails(final byte[] mailboxId) throws Throwable {
-        Map<byte[], Set<Long>> results = table.coprocessorExec(RowFilteringProtocol.class, mailboxId,
-                Bytes.add(mailboxId, new byte[]{(byte) 0xFF}),
-                new Batch.Call<RowFilteringProtocol, Set<Long>>() {
-                    @Override
-                    public Set<Long> call(RowFilteringProtocol instance) throws IOException {
-                        return instance.filterByMailbox(mailboxId);
-                    }
-                });
+        flushToStore();
+        HTableInterface table = getTable();
+        try {
+            Map<byte[], UidSet> results = table.coprocessorExec(RowFilteringProtocol.class, mailboxId,
+                    RowKeys.prefixSuccessor(mailboxId),
+                    new Batch.Call<RowFilteringProtocol, UidSet>() {
+                        @Override
+                        public UidSet call(RowFilteringProtocol instance) throws IOException {
+                            return instance.filterByMailbox(mailboxId);
+                        }
+                    });
 
-        return extractMessageIds(results);
+            return UidSet.union(results.values()).iterator();
+        } finally {
+            release(table);
+        }
     }
 
+    /**
+     * scans the rows of the mailbox which contain the mail, the scan is bounded to the
+     * mailbox's key range so its cost depends only on the size of that mailbox
+     *
+     * @param mailboxId
+     * @param messageId
+     * @return scanner over the rows holding the messageId qualifier
+     * @throws IOException
+     */
     public ResultScanner retrieveMails(byte[] mailboxId, long messageId) throws IOException {
         Preconditions.checkArgument(messageId != 0l);
-        Scan scan = new Scan();
+        flushToStore();
+        Scan scan = new Scan(mailboxId, RowKeys.prefixSuccessor(mailboxId));
         scan.addColumn(COLUMN_FAMILY.name, Bytes.toBytes(messageId));
-        RowFilter filter = new RowFilter(CompareFilter.CompareOp.EQUAL,
-                new BinaryPrefixComparator(mailboxId));
-        scan.setFilter(filter);
-        return table.getScanner(scan);
+        scan.setCaching(SCANNER_CACHING);
+        // a one time pass over the mailbox, keep the block cache for the searches
+        scan.setCacheBlocks(false);
+        HTableInterface table = getTable();
+        try {
+            // the scanner keeps its own reference to the connection, the handle can go back to the pool
+            return table.getScanner(scan);
+        } finally {
+            release(table);
+        }
     }
 
+    /**
+     * runs a search made of criteria which all have to match, the queries inside one criterion are alternatives.
+     * Flag criteria are answered from the flag posting rows, the other criteria by the coprocessors, every
+     * region returns its matches per criterion: the matches of a criterion are united across the regions,
+     * then the criteria are intersected
+     *
+     * @param mailboxId
+     * @param criteria
+     * @return uids matching all the criteria in ascending order, all the uids of the mailbox when there is no criterion
+     * @throws Throwable
+     */
     public Iterator<Long> retrieveMails(final byte[] mailboxId,
-                                        final Multimap<MessageFields, String> queries)
+                                        final List<Multimap<MessageFields, String>> criteria)
             throws Throwable {
-        if (queries.isEmpty())
+        if (criteria.isEmpty())
             return retrieveMails(mailboxId);
 
-        Map<byte[], Set<Long>> results = table.coprocessorExec(RowFilteringProtocol.class, mailboxId,
-                Bytes.add(mailboxId, new byte[]{(byte) 0xFF}),
-                new Batch.Call<RowFilteringProtocol, Set<Long>>() {
-                    @Override
-                    public Set<Long> call(RowFilteringProtocol instance) throws IOException {
-                        return instance.filterByQueries(mailboxId, queries);
+        flushToStore();
+        List<Multimap<MessageFields, String>> termCriteria = Lists.newArrayList();
+        List<Collection<String>> flagCriteria = Lists.newArrayList();
+        for (Multimap<MessageFields, String> criterion : criteria) {
+            if (criterion.containsKey(FLAGS_FIELD))
+                flagCriteria.add(criterion.get(FLAGS_FIELD));
+            else
+                termCriteria.add(criterion);
+        }
+        UidSet uids = null;
+        HTableInterface table = getTable();
+        try {
+            // the flag criteria are cheap, an empty result there spares the coprocessor calls
+            for (Collection<String> flagQueries : flagCriteria) {
+                uids = intersect(uids, retrieveFlagged(table, mailboxId, flagQueries));
+                if (uids.isEmpty())
+                    return uids.iterator();
+            }
+            if (!termCriteria.isEmpty()) {
+                final SearchCriteria searchCriteria =
+                        SearchCriteria.of(termCriteria, termGrams, termDictionary != null);
+                Map<byte[], CriteriaMatches> results = table.coprocessorExec(RowFilteringProtocol.class, mailboxId,
+                        RowKeys.prefixSuccessor(mailboxId),
+                        new Batch.Call<RowFilteringProtocol, CriteriaMatches>() {
+                            @Override
+                            public CriteriaMatches call(RowFilteringProtocol instance) throws IOException {
+                                return instance.filterByQueries(mailboxId, searchCriteria);
+                            }
+                        });
+                for (int i = 0; i < termCriteria.size(); i++) {
+                    List<UidSet> regionMatches = Lists.newArrayListWithCapacity(results.size());
+                    for (CriteriaMatches result : results.values())
+                        regionMatches.add(result.get(i));
+                    uids = intersect(uids, UidSet.union(regionMatches));
+                    if (uids.isEmpty())
+                        break;
+                }
+            }
+            return uids.iterator();
+        } finally {
+            release(table);
+        }
+    }
+
+    private static UidSet intersect(UidSet uids, UidSet matches) {
+        if (uids == null)
+            return matches;
+        uids.retainAll(matches);
+        return uids;
+    }
+
+    /**
+     * each flag query is the flag name prefixed by 1 when the flag has to be set or 0 when it has to be unset
+     */
+    private UidSet retrieveFlagged(HTableInterface table, byte[] mailboxId, Collection<String> flagQueries)
+            throws IOException {
+        UidSet uids = new UidSet();
+        UidSet all = null;
+        Map<Long, Set<String>> legacy = null;
+        for (String query : flagQueries) {
+            String flag = query.substring(1);
+            UidSet flagged = scanQualifiers(table, flagPostings.postingPrefix(mailboxId, flag));
+            if (legacyFlags) {
+                if (legacy == null)
+                    legacy = retrieveLegacyFlags(table, mailboxId);
+                for (Map.Entry<Long, Set<String>> message : legacy.entrySet())
+                    if (message.getValue().contains(flag))
+                        flagged.add(message.getKey());
+            }
+            if (query.charAt(0) == '1') {
+                uids.addAll(flagged);
+            } else {
+                if (all == null)
+                    all = retrieveFlagsIds(table, mailboxId);
+                UidSet unflagged = new UidSet(all.size());
+                unflagged.addAll(all);
+                unflagged.removeAll(flagged);
+                uids.addAll(unflagged);
+            }
+        }
+        // deleted messages are masked by the coprocessors, the posting rows are read directly
+        UidSet deleted = new UidSet();
+        addQualifierUids(table.get(new Get(Tombstones.row(mailboxId))), deleted);
+        uids.removeAll(deleted);
+        return uids;
+    }
+
+    /**
+     * every message has a cell in the flags rows, the legacy flags row included, even without any flag set
+     *
+     * @return the uids of all the messages of the mailbox
+     */
+    private UidSet retrieveFlagsIds(HTableInterface table, byte[] mailboxId) throws IOException {
+        byte[] prefix = RowKeys.fieldPrefix(mailboxId, FLAGS_FIELD);
+        Scan scan = new Scan(prefix, RowKeys.prefixSuccessor(prefix));
+        scan.addFamily(COLUMN_FAMILY.name);
+        scan.setFilter(new KeyOnlyFilter());
+        scan.setCaching(SCANNER_CACHING);
+        UidSet uids = new UidSet();
+        ResultScanner scanner = table.getScanner(scan);
+        try {
+            for (Result result : scanner)
+                for (KeyValue kv : result.raw())
+                    uids.add(Bytes.toLong(kv.getBuffer(), kv.getQualifierOffset()));
+        } finally {
+            scanner.close();
+        }
+        return uids;
+    }
+
+    /**
+     * @return the flags of the messages found in the legacy flags row of the mailbox, by uid
+     */
+    private static Map<Long, Set<String>> retrieveLegacyFlags(HTableInterface table, byte[] mailboxId)
+            throws IOException {
+        Get get = new Get(FlagPostings.legacyFlagsRow(mailboxId));
+        get.addFamily(COLUMN_FAMILY.name);
+        Result result = table.get(get);
+        Map<Long, Set<String>> flags = new HashMap<Long, Set<String>>();
+        if (!result.isEmpty())
+            for (KeyValue kv : result.raw())
+                flags.put(Bytes.toLong(kv.getBuffer(), kv.getQualifierOffset()), FlagPostings.decodeLegacy(kv.getValue()));
+        return flags;
+    }
+
+    /**
+     * @return the uids in the qualifiers of all the chunks of a posting row
+     */
+    private UidSet scanQualifiers(HTableInterface table, byte[] prefix) throws IOException {
+        Scan scan = new Scan(prefix, RowKeys.prefixSuccessor(prefix));
+        scan.addFamily(COLUMN_FAMILY.name);
+        scan.setCaching(SCANNER_CACHING);
+        UidSet uids = new UidSet();
+        ResultScanner scanner = table.getScanner(scan);
+        try {
+            for (Result result : scanner)
+                addQualifierUids(result, uids);
+        } finally {
+            scanner.close();
+        }
+        return uids;
+    }
+
+    private static void addQualifierUids(Result result, UidSet uids) throws IOException {
+        if (!result.isEmpty())
+            for (KeyValue kv : result.raw())
+                PostingBlocks.addUids(kv, uids);
+    }
+
+    /**
+     * reads the forward index row of a message
+     *
+     * @param mailboxId
+     * @param messageId
+     * @return the field | term suffixes of the rows holding the message or null if the message has no forward index row
+     * @throws IOException
+     */
+    public List<byte[]> retrieveDocument(byte[] mailboxId, long messageId) throws IOException {
+        flushToStore();
+        byte[] qualifier = Bytes.toBytes(messageId);
+        Get get = new Get(RowKeys.documentRow(mailboxId, messageId));
+        get.addColumn(COLUMN_FAMILY.name, qualifier);
+        HTableInterface table = getTable();
+        try {
+            byte[] value = table.get(get).getValue(COLUMN_FAMILY.name, qualifier);
+            return value == null ? null : DocumentTerms.decode(value);
+        } finally {
+            release(table);
+        }
+    }
+
+    /**
+     * @param mailboxId
+     * @return the uid up to which the mailbox was bulk indexed, 0 when it never was
+     * @throws IOException
+     */
+    public long bulkCheckpoint(byte[] mailboxId) throws IOException {
+        flushToStore();
+        HTableInterface table = getTable();
+        try {
+            byte[] value = table.get(new Get(RowKeys.checkpointRow(mailboxId)))
+                    .getValue(COLUMN_FAMILY.name, BULK_CHECKPOINT);
+            return value == null ? 0 : Bytes.toLong(value);
+        } finally {
+            release(table);
+        }
+    }
+
+    /**
+     * records that the messages of the mailbox are indexed up to a uid, once their puts are flushed
+     *
+     * @param mailboxId
+     * @param uid
+     * @throws IOException
+     */
+    public void storeBulkCheckpoint(byte[] mailboxId, long uid) throws IOException {
+        Put put = new Put(RowKeys.checkpointRow(mailboxId));
+        put.add(COLUMN_FAMILY.name, BULK_CHECKPOINT, Bytes.toBytes(uid));
+        // the postings and forward index rows of the messages first
+        flushToStore();
+        storeMail(Collections.singletonList(put));
+        flushToStore();
+    }
+
+    /**
+     * @return layout of the chunked flags and flag posting rows
+     */
+    public FlagPostings getFlagPostings() {
+        return flagPostings;
+    }
+
+    public boolean isLazyDeletes() {
+        return lazyDeletes;
+    }
+
+    /**
+     * @return true when the term rows may hold packed blocks, which column deletes can not reach
+     */
+    public boolean isPostingBlocks() {
+        return postingBlocks;
+    }
+
+    /**
+     * @return true when the {@link TermGrams} rows are written along with the term rows
+     */
+    public boolean isTermGrams() {
+        return termGrams;
+    }
+
+    /**
+     * @return true when the term cells hold a {@link TermFrequency}
+     */
+    public boolean isTermFrequencies() {
+        return termFrequencies;
+    }
+
+    /**
+     * @return true when the term rows are keyed by {@link TermDictionary} ids
+     */
+    public boolean isTermDictionary() {
+        return termDictionary != null;
+    }
+
+    /**
+     * @return number of bytes indexed per body part, negative for no limit
+     */
+    public long getMaxPartSize() {
+        return maxPartSize;
+    }
+
+    /**
+     * @return number of bytes of body parts indexed per message, negative for no limit
+     */
+    public long getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    public int getChunkTerms() {
+        return chunkTerms;
+    }
+
+    public int getMaxMessageTerms() {
+        return maxMessageTerms;
+    }
+
+    public int getBulkThreads() {
+        return bulkThreads;
+    }
+
+    public int getBulkBatchSize() {
+        return bulkBatchSize;
+    }
+
+    public int getFlushAdds() {
+        return flushAdds;
+    }
+
+    /**
+     * @return number of mailboxes whose search results may be cached, 0 when disabled
+     */
+    public int getSearchCacheSize() {
+        return searchCacheSize;
+    }
+
+    public int getSearchCacheQueries() {
+        return searchCacheQueries;
+    }
+
+    /**
+     * gives an id to every term, allocating the missing ones in the dictionary
+     *
+     * @param terms
+     * @return the id of each term
+     * @throws IOException
+     */
+    public Map<byte[], Long> termIds(Collection<byte[]> terms) throws IOException {
+        Preconditions.checkState(termDictionary != null, "the term dictionary is not enabled");
+        HTableInterface table = getTable(TermDictionary.TERMS_TABLE);
+        try {
+            return termDictionary.resolve(table, terms, true);
+        } finally {
+            release(table);
+        }
+    }
+
+    /**
+     * writes the tombstones of the deleted mails, a single put on the tombstone row of the mailbox
+     *
+     * @param mailboxId
+     * @param messageIds
+     * @throws IOException
+     */
+    public void markDeleted(byte[] mailboxId, Iterable<Long> messageIds) throws IOException {
+        Put put = new Put(Tombstones.row(mailboxId));
+        for (Long messageId : messageIds)
+            put.add(COLUMN_FAMILY.name, Bytes.toBytes(messageId), HBaseNames.EMPTY_COLUMN_VALUE.name);
+        if (!put.isEmpty()) {
+            storeMail(Collections.singletonList(put));
+            tombstonedMailboxes.add(mailboxId);
+        }
+    }
+
+    /**
+     * drops the tombstones of the mailbox whose uids have no cell left in any region, once the compactions
+     * have purged them. The full compactions of a region holding the whole mailbox already drop its
+     * tombstones, this is for the mailboxes spread over several regions. It runs every
+     * {@link #PURGE_INTERVAL} for the mailboxes marked since the store was opened.
+     *
+     * @param mailboxId
+     * @return number of tombstones dropped
+     * @throws IOException
+     */
+    public int purgeTombstones(final byte[] mailboxId) throws IOException {
+        flushToStore();
+        byte[] row = Tombstones.row(mailboxId);
+        HTableInterface table = getTable();
+        try {
+            final UidSet tombstones = new UidSet();
+            addQualifierUids(table.get(new Get(row)), tombstones);
+            if (tombstones.isEmpty())
+                return 0;
+            Map<byte[], UidSet> live;
+            try {
+                live = table.coprocessorExec(RowFilteringProtocol.class, mailboxId, RowKeys.prefixSuccessor(mailboxId),
+                        new Batch.Call<RowFilteringProtocol, UidSet>() {
+                            @Override
+                            public UidSet call(RowFilteringProtocol instance) throws IOException {
+                                return instance.filterLive(mailboxId, tombstones);
+                            }
+                        });
+            } catch (IOException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IOException(e);
+            }
+            tombstones.removeAll(UidSet.union(live.values()));
+            if (tombstones.isEmpty())
+                return 0;
+            Delete delete = new Delete(row);
+            for (long uid : tombstones.toArray())
+                delete.deleteColumns(COLUMN_FAMILY.name, Bytes.toBytes(uid));
+            table.delete(delete);
+            return tombstones.size();
+        } finally {
+            release(table);
+        }
+    }
+
+    private boolean hasTombstones(byte[] mailboxId) throws IOException {
+        HTableInterface table = getTable();
+        try {
+            return table.exists(new Get(Tombstones.row(mailboxId)));
+        } finally {
+            release(table);
+        }
+    }
+
+    /**
+     * drops from the gram rows of the mailbox the terms which have no term row left: deleting a message
+     * leaves its terms in the gram rows, where they cost an empty read to the substring searches. The cells
+     * younger than {@link TermGrams#PURGE_GRACE} are kept since the term rows written along with them may
+     * not have landed yet, and each cell is deleted at its own timestamp so that a term indexed again
+     * meanwhile stays listed. It runs every {@link #PURGE_INTERVAL} for the mailboxes with deleted mails.
+     *
+     * @param mailboxId
+     * @return number of gram cells dropped
+     * @throws IOException
+     */
+    public int purgeGrams(byte[] mailboxId) throws IOException {
+        flushToStore();
+        long before = System.currentTimeMillis() - gramPurgeGrace;
+        byte[] prefix = RowKeys.fieldPrefix(mailboxId, GRAM_FIELD);
+        HTableInterface table = getTable();
+        try {
+            // the terms listed by the gram rows, by field
+            Map<Byte, Set<byte[]>> listed = new HashMap<Byte, Set<byte[]>>();
+            ResultScanner scanner = table.getScanner(gramScan(prefix));
+            try {
+                for (Result result : scanner) {
+                    byte field = result.getRow()[RowKeys.FIELD_PREFIX_LENGTH];
+                    Set<byte[]> terms = listed.get(field);
+                    if (terms == null) {
+                        terms = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+                        listed.put(field, terms);
                     }
-                });
+                    for (KeyValue kv : result.raw())
+                        terms.add(kv.getQualifier());
+                }
+            } finally {
+                scanner.close();
+            }
+            Map<Byte, Set<byte[]>> dead = new HashMap<Byte, Set<byte[]>>();
+            for (Map.Entry<Byte, Set<byte[]>> field : listed.entrySet())
+                dead.put(field.getKey(), deadTerms(table, mailboxId, field.getKey(), field.getValue()));
 
-        return extractMessageIds(results);
+            int dropped = 0;
+            List<Delete> deletes = Lists.newArrayList();
+            scanner = table.getScanner(gramScan(prefix));
+            try {
+                for (Result result : scanner) {
+                    Set<byte[]> terms = dead.get(result.getRow()[RowKeys.FIELD_PREFIX_LENGTH]);
+                    if (terms == null || terms.isEmpty())
+                        continue;
+                    Delete delete = new Delete(result.getRow());
+                    for (KeyValue kv : result.raw()) {
+                        if (kv.getTimestamp() < before && terms.contains(kv.getQualifier())) {
+                            delete.deleteColumn(COLUMN_FAMILY.name, kv.getQualifier(), kv.getTimestamp());
+                            dropped++;
+                        }
+                    }
+                    if (!delete.isEmpty())
+                        deletes.add(delete);
+                    if (deletes.size() >= SCANNER_CACHING) {
+                        table.delete(deletes);
+                        deletes.clear();
+                    }
+                }
+            } finally {
+                scanner.close();
+            }
+            if (!deletes.isEmpty())
+                table.delete(deletes);
+            return dropped;
+        } finally {
+            release(table);
+        }
     }
 
-    private Iterator<Long> extractMessageIds(Map<byte[], Set<Long>> results){
-        Set<Long> uids = Sets.newHashSet();
-        for (Map.Entry<byte[], Set<Long>> entry : results.entrySet()) {
-            uids.addAll(entry.getValue());
+    private static Scan gramScan(byte[] prefix) {
+        Scan scan = new Scan(prefix, RowKeys.prefixSuccessor(prefix));
+        scan.addFamily(COLUMN_FAMILY.name);
+        scan.setFilter(new KeyOnlyFilter());
+        scan.setCaching(SCANNER_CACHING);
+        // a gram row lists every term of the mailbox containing the gram
+        scan.setBatch(SCANNER_CACHING);
+        return scan;
+    }
+
+    /**
+     * @return the terms of the field which have no term row in the mailbox
+     */
+    private Set<byte[]> deadTerms(HTableInterface table, byte[] mailboxId, byte field, Set<byte[]> terms)
+            throws IOException {
+        Set<byte[]> dead = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+        Map<byte[], byte[]> rows = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+        if (termDictionary == null) {
+            for (byte[] term : terms)
+                rows.put(term, RowKeys.row(mailboxId, field, term));
+        } else {
+            HTableInterface dictionaryTable = getTable(TermDictionary.TERMS_TABLE);
+            try {
+                Map<byte[], Long> ids = termDictionary.resolve(dictionaryTable, terms, false);
+                for (byte[] term : terms) {
+                    Long id = ids.get(term);
+                    if (id == null)
+                        dead.add(term);
+                    else
+                        rows.put(term, RowKeys.row(mailboxId, field, TermDictionary.idTerm(id)));
+                }
+            } finally {
+                release(dictionaryTable);
+            }
+        }
+        for (List<byte[]> batch : Lists.partition(Lists.newArrayList(rows.keySet()), SCANNER_CACHING)) {
+            List<Get> gets = Lists.newArrayListWithCapacity(batch.size());
+            for (byte[] term : batch) {
+                Get get = new Get(rows.get(term));
+                get.addFamily(COLUMN_FAMILY.name);
+                get.setFilter(new FirstKeyOnlyFilter());
+                gets.add(get);
+            }
+            Result[] results = table.get(gets);
+            for (int i = 0; i < results.length; i++)
+                if (results[i].isEmpty())
+                    dead.add(batch.get(i));
         }
-        return uids.iterator();
+        return dead;
     }
 
     public void deleteMail(byte[] row, long messageId) throws IOException {
         Delete delete = new Delete(row);
         delete.deleteColumn(COLUMN_FAMILY.name, Bytes.toBytes(messageId));
-        table.delete(delete);
+        deleteMails(Lists.newArrayList(delete));
+    }
+
+    /**
+     * sends all the deletes in one batch
+     *
+     * @param deletes
+     * @throws IOException
+     */
+    public void deleteMails(List<Delete> deletes) throws IOException {
+        if (deletes.isEmpty())
+            return;
+        // deletes are not buffered, pending puts have to reach the region servers first
+        flushToStore();
+        HTableInterface table = getTable();
+        try {
+            table.delete(deletes);
+        } finally {
+            release(table);
+        }
+        if (termGrams) {
+            long now = System.currentTimeMillis();
+            for (Delete delete : deletes)
+                gramPurges.put(Arrays.copyOf(delete.getRow(), RowKeys.MAILBOX_ID_LENGTH), now);
+        }
     }
 
+    /**
+     * sends everything waiting in the write buffer to the region servers,
+     * this is the durability boundary for the buffered writes.
+     * Flushes are serialized so that a caller returning from here knows that
+     * every put buffered before the call has been written, even by another thread.
+     * When the multi-put fails its puts stay in the write buffer for the next flush, up to
+     * {@link #FLUSH_RETRIES} times. Puts dropped since the last call fail this one.
+     *
+     * @throws IOException
+     */
     public void flushToStore() throws IOException {
-        table.flushCommits();
+        flush();
+        IOException dropped = droppedPuts.getAndSet(null);
+        if (dropped != null)
+            throw dropped;
+    }
+
+    private void flush() throws IOException {
+        flushLock.lock();
+        try {
+            List<Put> batch = Lists.newArrayList();
+            long size = 0;
+            Put put;
+            while ((put = writeBuffer.poll()) != null) {
+                batch.add(put);
+                size += put.heapSize();
+            }
+            writeBufferHeapSize.addAndGet(-size);
+            if (batch.isEmpty()) {
+                flushFailure.set(null);
+                return;
+            }
+
+            try {
+                HTableInterface table = getTable();
+                try {
+                    // pooled tables auto flush, the list goes out as one multi-put
+                    table.put(batch);
+                } finally {
+                    release(table);
+                }
+                failedFlushes = 0;
+                flushFailure.set(null);
+            } catch (IOException e) {
+                if (++failedFlushes <= flushRetries) {
+                    requeue(batch, size);
+                } else {
+                    failedFlushes = 0;
+                    LOG.error("Dropped " + batch.size() + " index puts after " + flushRetries + " retries.", e);
+                    dropped(batch.size(), e);
+                }
+                throw e;
+            } catch (RuntimeException e) {
+                // rejected by the client, sending the same puts again would fail the same way
+                LOG.error("Dropped " + batch.size() + " index puts rejected by the client.", e);
+                dropped(batch.size(), e);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * puts a batch which could not be sent back in front of the write buffer, in its order and ahead of
+     * the puts buffered since, so a later write of the same cell still wins. Puts are idempotent, the
+     * ones of the batch which did reach the region servers are only written again.
+     */
+    private void requeue(List<Put> batch, long size) {
+        for (int i = batch.size() - 1; i >= 0; i--)
+            writeBuffer.addFirst(batch.get(i));
+        writeBufferHeapSize.addAndGet(size);
+    }
+
+    /**
+     * rewrites the SENT_DATE_FIELD and UID_FIELD rows written in the legacy 19 digits format to the
+     * {@link NumericTerms} binary format, and the forward index rows listing them. The index stays online:
+     * each new row is written before its legacy row is deleted, and searches read both formats as long as
+     * {@link NumericTerms#LEGACY} is set, which can be turned off once this has run.
+     *
+     * @return number of migrated numeric rows
+     * @throws IOException
+     */
+    public long migrateNumericTerms() throws IOException {
+        flushToStore();
+        Scan scan = new Scan();
+        scan.addFamily(COLUMN_FAMILY.name);
+        scan.setCaching(SCANNER_CACHING);
+        // the term rows are read a slice at a time, a numeric row can have a cell per message of the mailbox
+        scan.setBatch(SCANNER_CACHING);
+        // a one time pass over the whole table, keep the block cache for the searches
+        scan.setCacheBlocks(false);
+        long migrated = 0;
+        byte[] previous = null;
+        List<Put> puts = Lists.newArrayList();
+        List<Delete> deletes = Lists.newArrayList();
+        HTableInterface table = getTable();
+        try {
+            ResultScanner scanner = table.getScanner(scan);
+            try {
+                for (Result result : scanner) {
+                    byte[] row = result.getRow();
+                    if (row.length <= RowKeys.FIELD_PREFIX_LENGTH)
+                        continue;
+                    byte field = row[RowKeys.MAILBOX_ID_LENGTH];
+                    if (field == DOCUMENT_FIELD.id) {
+                        Put put = migrateDocument(result);
+                        if (put != null)
+                            puts.add(put);
+                    } else if ((field == SENT_DATE_FIELD.id || field == UID_FIELD.id) && NumericTerms.isLegacyTerm(
+                            row, RowKeys.FIELD_PREFIX_LENGTH, row.length - RowKeys.FIELD_PREFIX_LENGTH)) {
+                        Put put = new Put(Bytes.add(Arrays.copyOf(row, RowKeys.FIELD_PREFIX_LENGTH), NumericTerms.fromLegacy(
+                                row, RowKeys.FIELD_PREFIX_LENGTH, row.length - RowKeys.FIELD_PREFIX_LENGTH)));
+                        // only the cells read are deleted, the rest of the row is still to come; the cells keep
+                        // their timestamp so that a delete of the message made meanwhile still masks them
+                        Delete delete = new Delete(row);
+                        for (KeyValue kv : result.raw()) {
+                            put.add(COLUMN_FAMILY.name, kv.getQualifier(), kv.getTimestamp(), kv.getValue());
+                            delete.deleteColumn(COLUMN_FAMILY.name, kv.getQualifier(), kv.getTimestamp());
+                        }
+                        puts.add(put);
+                        deletes.add(delete);
+                        if (!Bytes.equals(row, previous))
+                            migrated++;
+                        previous = row;
+                    }
+                    if (puts.size() >= SCANNER_CACHING) {
+                        table.put(puts);
+                        table.delete(deletes);
+                        puts.clear();
+                        deletes.clear();
+                    }
+                }
+            } finally {
+                scanner.close();
+            }
+            table.put(puts);
+            table.delete(deletes);
+        } finally {
+            release(table);
+        }
+        return migrated;
     }
 
-    public Result retrieveFlags(byte[] mailboxId, long messageId) throws IOException {
-        Get get = new Get(Bytes.add(mailboxId, new byte[]{FLAGS_FIELD.id}));
-        get.addColumn(COLUMN_FAMILY.name, Bytes.toBytes(messageId));
-        return table.get(get);
+    /**
+     * @return the forward index row listing the migrated suffixes, null if it lists no legacy numeric row
+     */
+    private static Put migrateDocument(Result result) throws IOException {
+        Put put = null;
+        for (KeyValue kv : result.raw()) {
+            List<byte[]> suffixes = DocumentTerms.decode(kv.getValue());
+            boolean legacy = false;
+            for (int i = 0; i < suffixes.size(); i++) {
+                byte[] suffix = suffixes.get(i);
+                if ((suffix[0] == SENT_DATE_FIELD.id || suffix[0] == UID_FIELD.id)
+                        && NumericTerms.isLegacyTerm(suffix, 1, suffix.length - 1)) {
+                    suffixes.set(i, Bytes.add(new byte[]{suffix[0]}, NumericTerms.fromLegacy(suffix, 1, suffix.length - 1)));
+                    legacy = true;
+                }
+            }
+            if (legacy) {
+                if (put == null)
+                    put = new Put(result.getRow());
+                // just newer than the cell it replaces, still older than a delete of the message made meanwhile
+                put.add(COLUMN_FAMILY.name, kv.getQualifier(), kv.getTimestamp() + 1, DocumentTerms.encode(suffixes));
+            }
+        }
+        return put;
+    }
+
+    /**
+     * moves the flags of the legacy flags rows to the chunked flags rows and writes their posting rows.
+     * The index stays online: the new cells are written before the legacy ones are deleted, and searches
+     * read both layouts as long as {@link FlagPostings#LEGACY} is set, which can be turned off once this
+     * has run. The new cells keep the timestamp of their legacy cell, so an update of the flags made
+     * meanwhile wins over them whatever the order the writes land in.
+     *
+     * @return number of messages whose flags have been migrated
+     * @throws IOException
+     */
+    public long migrateFlags() throws IOException {
+        flushToStore();
+        Scan scan = new Scan();
+        scan.addFamily(COLUMN_FAMILY.name);
+        scan.setCaching(SCANNER_CACHING);
+        // the rows are read a slice at a time, a mailbox's legacy flags row has a cell per message
+        scan.setBatch(SCANNER_CACHING);
+        scan.setCacheBlocks(false);
+        long migrated = 0;
+        List<Put> puts = Lists.newArrayList();
+        List<Delete> deletes = Lists.newArrayList();
+        HTableInterface table = getTable();
+        try {
+            ResultScanner scanner = table.getScanner(scan);
+            try {
+                for (Result result : scanner) {
+                    byte[] row = result.getRow();
+                    if (FlagPostings.isLegacyPostingRow(row)) {
+                        // the uids are written again below in the chunked posting rows
+                        Delete delete = new Delete(row);
+                        for (KeyValue kv : result.raw())
+                            delete.deleteColumn(COLUMN_FAMILY.name, kv.getQualifier(), kv.getTimestamp());
+                        deletes.add(delete);
+                        continue;
+                    }
+                    if (!FlagPostings.isLegacyFlagsRow(row))
+                        continue;
+                    byte[] mailboxId = Arrays.copyOf(row, RowKeys.MAILBOX_ID_LENGTH);
+                    Delete delete = new Delete(row);
+                    for (KeyValue kv : result.raw()) {
+                        long messageId = Bytes.toLong(kv.getBuffer(), kv.getQualifierOffset());
+                        byte[] qualifier = kv.getQualifier();
+                        Set<String> flags = FlagPostings.decodeLegacy(kv.getValue());
+                        Put put = new Put(flagPostings.flagsRow(mailboxId, messageId));
+                        put.add(COLUMN_FAMILY.name, qualifier, kv.getTimestamp(), Bytes.toBytes(FlagPostings.encode(flags)));
+                        puts.add(put);
+                        for (String flag : flags) {
+                            put = new Put(flagPostings.postingRow(mailboxId, flag, messageId));
+                            put.add(COLUMN_FAMILY.name, qualifier, kv.getTimestamp(), HBaseNames.EMPTY_COLUMN_VALUE.name);
+                            puts.add(put);
+                        }
+                        delete.deleteColumn(COLUMN_FAMILY.name, qualifier, kv.getTimestamp());
+                        migrated++;
+                    }
+                    deletes.add(delete);
+                    if (puts.size() >= SCANNER_CACHING) {
+                        table.put(puts);
+                        table.delete(deletes);
+                        puts.clear();
+                        deletes.clear();
+                    }
+                }
+            } finally {
+                scanner.close();
+            }
+            table.put(puts);
+            table.delete(deletes);
+        } finally {
+            release(table);
+        }
+        return migrated;
     }
 
-    public void updateFlags(byte[] row, long messageId, String flags) throws IOException {
-        Put put = new Put(row);
-        put.add(COLUMN_FAMILY.name, Bytes.toBytes(messageId), Bytes.toBytes(flags));
-        table.put(put);
+    /**
+     * @param mailboxId
+     * @param messageId
+     * @return names of the flags currently set on the message
+     * @throws IOException
+     */
+    public Set<String> retrieveFlags(byte[] mailboxId, long messageId) throws IOException {
+        flushToStore();
+        byte[] qualifier = Bytes.toBytes(messageId);
+        Get get = new Get(flagPostings.flagsRow(mailboxId, messageId));
+        get.addColumn(COLUMN_FAMILY.name, qualifier);
+        HTableInterface table = getTable();
+        try {
+            byte[] value = table.get(get).getValue(COLUMN_FAMILY.name, qualifier);
+            if (value == null && legacyFlags) {
+                // not migrated yet, the flags are still in the legacy flags row
+                get = new Get(FlagPostings.legacyFlagsRow(mailboxId));
+                get.addColumn(COLUMN_FAMILY.name, qualifier);
+                return FlagPostings.decodeLegacy(table.get(get).getValue(COLUMN_FAMILY.name, qualifier));
+            }
+            return FlagPostings.decode(value);
+        } finally {
+            release(table);
+        }
     }
 
+    /**
+     * replaces the flags of the message and moves its uid between the flag posting rows
+     *
+     * @param mailboxId
+     * @param messageId
+     * @param previous flags set before the update
+     * @param current flags set after the update
+     * @throws IOException
+     */
+    public void updateFlags(byte[] mailboxId, long messageId, Collection<String> previous,
+                            Collection<String> current) throws IOException {
+        byte[] qualifier = Bytes.toBytes(messageId);
+        List<Put> puts = Lists.newArrayList();
+        Put put = new Put(flagPostings.flagsRow(mailboxId, messageId));
+        put.add(COLUMN_FAMILY.name, qualifier, Bytes.toBytes(FlagPostings.encode(current)));
+        puts.add(put);
+        for (String flag : current) {
+            // a message of the legacy flags row has no posting cells yet, not even for the flags it keeps
+            if (legacyFlags || !previous.contains(flag)) {
+                put = new Put(flagPostings.postingRow(mailboxId, flag, messageId));
+                put.add(COLUMN_FAMILY.name, qualifier, HBaseNames.EMPTY_COLUMN_VALUE.name);
+                puts.add(put);
+            }
+        }
+        List<Delete> deletes = Lists.newArrayList();
+        if (legacyFlags) {
+            // the legacy cell would keep answering the searches with the flags it was indexed with
+            Delete delete = new Delete(FlagPostings.legacyFlagsRow(mailboxId));
+            delete.deleteColumns(COLUMN_FAMILY.name, qualifier);
+            deletes.add(delete);
+        }
+        for (String flag : previous) {
+            if (!current.contains(flag)) {
+                Delete delete = new Delete(flagPostings.postingRow(mailboxId, flag, messageId));
+                delete.deleteColumn(COLUMN_FAMILY.name, qualifier);
+                deletes.add(delete);
+            }
+        }
+        storeMail(puts);
+        deleteMails(deletes);
+    }
 
+    /**
+     * stops the periodic flush, writes the remaining buffered puts and closes the pooled tables
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (flusher != null)
+            flusher.shutdown();
+        if (purger != null)
+            purger.shutdown();
+        flushToStore();
+        pool.closeTablePool(INDEX_TABLE.name);
+        if (termDictionary != null)
+            pool.closeTablePool(TermDictionary.TERMS_TABLE);
+    }
 }
@@ -0,0 +1,121 @@
+package org.apache.james.mailbox.hbase.store;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.io.encoding.DataBlockEncoding;
+import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import static org.apache.james.mailbox.hbase.store.HBaseNames.COLUMN_FAMILY;
+import static org.apache.james.mailbox.hbase.store.HBaseNames.INDEX_TABLE;
+
+/**
+ * Settings of the index column family. The row keys are long and share their mailboxId|field prefix,
+ * the values are empty and nothing ever reads an older version of a cell, so by default the family keeps
+ * one version, uses FAST_DIFF block encoding, GZ compression and a row bloom filter for the point lookups.
+ */
+public class IndexSchema {
+    private static final Logger LOG = LoggerFactory.getLogger(IndexSchema.class);
+
+    public static final String MAX_VERSIONS = "hbaluin.index.family.versions";
+    public static final String COMPRESSION = "hbaluin.index.family.compression";
+    public static final String DATA_BLOCK_ENCODING = "hbaluin.index.family.encoding";
+    public static final String BLOOM_FILTER = "hbaluin.index.family.bloom";
+    public static final String BLOCK_SIZE = "hbaluin.index.family.blocksize";
+    /**
+     * when true, {@link HBaseIndexStore#getInstance} alters an existing table whose family settings differ
+     */
+    public static final String MIGRATE = "hbaluin.index.family.migrate";
+
+    private final int maxVersions;
+    private final Compression.Algorithm compression;
+    private final DataBlockEncoding dataBlockEncoding;
+    private final StoreFile.BloomType bloomFilter;
+    private final int blockSize;
+
+    public IndexSchema(int maxVersions, Compression.Algorithm compression, DataBlockEncoding dataBlockEncoding,
+                       StoreFile.BloomType bloomFilter, int blockSize) {
+        this.maxVersions = maxVersions;
+        this.compression = compression;
+        this.dataBlockEncoding = dataBlockEncoding;
+        this.bloomFilter = bloomFilter;
+        this.blockSize = blockSize;
+    }
+
+    public static IndexSchema fromConfiguration(Configuration configuration) {
+        return new IndexSchema(configuration.getInt(MAX_VERSIONS, 1),
+                Compression.Algorithm.valueOf(configuration.get(COMPRESSION, "GZ").toUpperCase(Locale.ENGLISH)),
+                DataBlockEncoding.valueOf(configuration.get(DATA_BLOCK_ENCODING, "FAST_DIFF").toUpperCase(Locale.ENGLISH)),
+                StoreFile.BloomType.valueOf(configuration.get(BLOOM_FILTER, "ROW").toUpperCase(Locale.ENGLISH)),
+                configuration.getInt(BLOCK_SIZE, HColumnDescriptor.DEFAULT_BLOCKSIZE));
+    }
+
+    public HColumnDescriptor createColumnDescriptor() {
+        HColumnDescriptor columnDescriptor = new HColumnDescriptor(COLUMN_FAMILY.name);
+        applyTo(columnDescriptor);
+        return columnDescriptor;
+    }
+
+    public void applyTo(HColumnDescriptor columnDescriptor) {
+        columnDescriptor.setMaxVersions(maxVersions);
+        columnDescriptor.setCompressionType(compression);
+        columnDescriptor.setDataBlockEncoding(dataBlockEncoding);
+        columnDescriptor.setBloomFilterType(bloomFilter);
+        columnDescriptor.setBlocksize(blockSize);
+    }
+
+    public boolean matches(HColumnDescriptor columnDescriptor) {
+        return columnDescriptor.getMaxVersions() == maxVersions
+                && columnDescriptor.getCompressionType() == compression
+                && columnDescriptor.getDataBlockEncoding() == dataBlockEncoding
+                && columnDescriptor.getBloomFilterType() == bloomFilter
+                && columnDescriptor.getBlocksize() == blockSize;
+    }
+
+    /**
+     * alters the family of an existing index table when its settings differ from this schema.
+     * The table is disabled while the family is modified, the existing store files get the new
+     * encoding and compression when they are next compacted.
+     *
+     * @param admin
+     * @return true if the table was modified
+     * @throws IOException
+     */
+    public boolean migrate(HBaseAdmin admin) throws IOException {
+        HTableDescriptor htd = admin.getTableDescriptor(INDEX_TABLE.name);
+        HColumnDescriptor columnDescriptor = htd.getFamily(COLUMN_FAMILY.name);
+        if (matches(columnDescriptor))
+            return false;
+
+        LOG.info("Migrating the index column family from " + columnDescriptor + " to " + this);
+        applyTo(columnDescriptor);
+        admin.disableTable(INDEX_TABLE.name);
+        try {
+            admin.modifyColumn(INDEX_TABLE.name, columnDescriptor);
+        } finally {
+            admin.enableTable(INDEX_TABLE.name);
+        }
+        // rewrite the store files so the whole table benefits right away
+        try {
+            admin.majorCompact(INDEX_TABLE.name);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while requesting the major compaction of the index table.");
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexSchema{maxVersions=" + maxVersions + ", compression=" + compression
+                + ", dataBlockEncoding=" + dataBlockEncoding + ", bloomFilter=" + bloomFilter
+                + ", blockSize=" + blockSize + "}";
+    }
+}
@@ -0,0 +1,41 @@
+package org.apache.james.mailbox.hbase.store;
+
+import org.apache.hadoop.hbase.regionserver.ConstantSizeRegionSplitPolicy;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.Arrays;
+
+import static org.apache.james.mailbox.hbase.store.RowKeys.FIELD_PREFIX_LENGTH;
+
+/**
+ * Split policy for the index table which never puts the rows of one mailboxId|field prefix
+ * in two regions. The split point chosen by HBase is moved back to the start of its prefix,
+ * or forward to the next prefix when the region starts inside that same prefix.
+ * The flags, flag posting and forward index rows are keyed by uid chunk or uid and the gram rows are
+ * only read one by one, they may be split anywhere.
+ */
+public class MailboxPrefixSplitPolicy extends ConstantSizeRegionSplitPolicy {
+
+    @Override
+    protected byte[] getSplitPoint() {
+        byte[] splitPoint = super.getSplitPoint();
+        if (splitPoint == null || splitPoint.length <= FIELD_PREFIX_LENGTH)
+            return splitPoint;
+
+        byte field = splitPoint[RowKeys.MAILBOX_ID_LENGTH];
+        if (field == MessageFields.FLAGS_FIELD.id || field == MessageFields.FLAG_POSTING_FIELD.id
+                || field == MessageFields.DOCUMENT_FIELD.id || field == MessageFields.GRAM_FIELD.id)
+            // rows chunked by uid, they are read one by one or by range and can be spread over regions
+            return splitPoint;
+
+        byte[] startKey = region.getStartKey();
+        byte[] endKey = region.getEndKey();
+        byte[] prefix = Arrays.copyOf(splitPoint, FIELD_PREFIX_LENGTH);
+        if (Bytes.compareTo(prefix, startKey) <= 0)
+            prefix = RowKeys.prefixSuccessor(prefix);
+        if (prefix.length == 0 || (endKey.length > 0 && Bytes.compareTo(prefix, endKey) >= 0))
+            // the whole region belongs to one prefix
+            return null;
+        return prefix;
+    }
+}
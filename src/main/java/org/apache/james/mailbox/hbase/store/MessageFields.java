@@ -17,7 +17,37 @@ public enum MessageFields {
     FIRST_CC_MAILBOX_NAME_FIELD((byte) 13),
     FIRST_FROM_MAILBOX_DISPLAY_FIELD((byte) 14),
     FIRST_TO_MAILBOX_DISPLAY_FIELD((byte) 15),
-    UID_FIELD((byte) 16);
+    UID_FIELD((byte) 16),
+    /**
+     * forward index, one row per message listing the term rows written for it
+     */
+    DOCUMENT_FIELD((byte) 17),
+    /**
+     * uids deleted from the mailbox but still present in the other rows until they are compacted
+     */
+    TOMBSTONE_FIELD((byte) 18),
+    /**
+     * one posting row per flag, holding the uids of the messages which have it set
+     */
+    FLAG_POSTING_FIELD((byte) 19),
+    /**
+     * n-gram rows of the text fields, listing the terms which contain a gram
+     */
+    GRAM_FIELD((byte) 20),
+    /**
+     * bulk indexing checkpoint of the mailbox, the uid up to which the mailbox is indexed
+     */
+    CHECKPOINT_FIELD((byte) 21);
+
+    /**
+     * indexed by the unsigned field byte, values() copies its array on every call
+     */
+    private static final MessageFields[] BY_ID = new MessageFields[256];
+
+    static {
+        for (MessageFields field : values())
+            BY_ID[field.id & 0xFF] = field;
+    }
 
     public final byte id;
 
@@ -25,6 +55,15 @@ public enum MessageFields {
         this.id = id;
     }
 
+    /**
+     * @param id
+     * @return the field with this id or NOT_FOUND
+     */
+    public static MessageFields byId(byte id) {
+        MessageFields field = BY_ID[id & 0xFF];
+        return field == null ? NOT_FOUND : field;
+    }
+
     @Override
     public String toString() {
         return Integer.toString(id);
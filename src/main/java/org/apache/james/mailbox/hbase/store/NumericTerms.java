@@ -0,0 +1,89 @@
+package org.apache.james.mailbox.hbase.store;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import static org.apache.james.mailbox.hbase.store.MessageFields.SENT_DATE_FIELD;
+import static org.apache.james.mailbox.hbase.store.MessageFields.UID_FIELD;
+
+/**
+ * Terms of the SENT_DATE_FIELD and UID_FIELD rows. The value is written as 8 big endian bytes with the
+ * sign bit flipped, so that the unsigned byte order of the row keys is the numeric order, negative
+ * values included, and a range of values is a range of row keys.
+ * <p/>
+ * Older indexes wrote the value as a 19 digit zero padded decimal string, {@link #LEGACY_LENGTH} bytes.
+ * Both formats sort apart inside the field prefix: searches also read the legacy range while
+ * {@link #LEGACY} is set, and {@link HBaseIndexStore#migrateNumericTerms()} rewrites the legacy rows.
+ */
+public final class NumericTerms {
+    /**
+     * when true the searches also read the rows written in the 19 digits format, to be unset once the
+     * numeric terms have been migrated
+     */
+    public static final String LEGACY = "hbaluin.index.numeric.legacy";
+    /**
+     * when true {@link HBaseIndexStore#getInstance} starts the migration of the legacy numeric rows
+     * in the background
+     */
+    public static final String MIGRATE = "hbaluin.index.numeric.migrate";
+
+    public static final int LEGACY_LENGTH = 19;
+
+    private NumericTerms() {
+    }
+
+    public static boolean isNumeric(MessageFields field) {
+        return field == SENT_DATE_FIELD || field == UID_FIELD;
+    }
+
+    public static byte[] encode(long value) {
+        return Bytes.toBytes(value ^ Long.MIN_VALUE);
+    }
+
+    public static long decode(byte[] buffer, int offset) {
+        return Bytes.toLong(buffer, offset) ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * @param value
+     * @return the value in the legacy format: an optional minus sign and 19 digits
+     */
+    public static String legacyTerm(long value) {
+        String digits = Long.toString(value);
+        int start = value < 0 ? 1 : 0;
+        StringBuilder term = new StringBuilder(LEGACY_LENGTH + 1);
+        if (value < 0)
+            term.append('-');
+        for (int i = digits.length() - start; i < LEGACY_LENGTH; i++)
+            term.append('0');
+        return term.append(digits, start, digits.length()).toString();
+    }
+
+    /**
+     * @param buffer
+     * @param offset start of the term
+     * @param length length of the term
+     * @return true if the term is a legacy numeric term, which only holds digits and a sign
+     */
+    public static boolean isLegacyTerm(byte[] buffer, int offset, int length) {
+        if (length != LEGACY_LENGTH && length != LEGACY_LENGTH + 1)
+            return false;
+        for (int i = offset; i < offset + length; i++)
+            if ((buffer[i] < '0' || buffer[i] > '9') && !(i == offset && buffer[i] == '-'))
+                return false;
+        return true;
+    }
+
+    public static long decodeLegacy(byte[] buffer, int offset, int length) {
+        return Long.parseLong(Bytes.toString(buffer, offset, length));
+    }
+
+    /**
+     * @param buffer
+     * @param offset start of a legacy term
+     * @param length length of the term
+     * @return the same value in the binary format
+     */
+    public static byte[] fromLegacy(byte[] buffer, int offset, int length) {
+        return encode(decodeLegacy(buffer, offset, length));
+    }
+}
@@ -0,0 +1,126 @@
+package org.apache.james.mailbox.hbase.store;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Packed posting format for the term rows. A term row normally holds one empty cell per uid; once a row has
+ * accumulated enough of them, {@link org.apache.james.mailbox.hbase.store.observer.IndexCompactionObserver}
+ * replaces runs of those cells with block cells:
+ * <ul>
+ * <li>qualifier: first uid of the block (8 bytes) | last uid of the block (8 bytes) | BLOCK_MARKER</li>
+ * <li>value: vlong count, then the uids as vlong deltas from the previous one</li>
+ * </ul>
+ * Single cells keep an 8 byte qualifier, readers tell the two apart by the qualifier length. The blocks are
+ * only made by the compactions which rewrite all the store files of the region: a block made of cells of
+ * some of the files could get the qualifier of a block of the other files and, with a single version
+ * kept, hide it. Blocks written before the last uid was part of the qualifier are still read.
+ * Packed uids can not be removed by a column delete, they are masked by the tombstones of the mailbox
+ * until the next compaction drops them from their block.
+ */
+public final class PostingBlocks {
+    /**
+     * enables the packing of the term rows at compaction time, read by the region servers and by the
+     * clients which have to write tombstones for their deletes
+     */
+    public static final String ENABLED = "hbaluin.index.posting.blocks";
+    /**
+     * number of uids packed in one block, rows with less single cells than that are left as they are
+     */
+    public static final String BLOCK_SIZE = "hbaluin.index.posting.block.size";
+    public static final int DEFAULT_BLOCK_SIZE = 128;
+
+    public static final byte BLOCK_MARKER = 0x01;
+    public static final int BLOCK_QUALIFIER_LENGTH = 2 * Bytes.SIZEOF_LONG + 1;
+    /**
+     * first uid | BLOCK_MARKER, as the first blocks were written
+     */
+    public static final int LEGACY_BLOCK_QUALIFIER_LENGTH = Bytes.SIZEOF_LONG + 1;
+
+    private PostingBlocks() {
+    }
+
+    public static boolean isBlock(int qualifierLength) {
+        return qualifierLength == BLOCK_QUALIFIER_LENGTH || qualifierLength == LEGACY_BLOCK_QUALIFIER_LENGTH;
+    }
+
+    public static byte[] blockQualifier(long firstUid, long lastUid) {
+        return Bytes.add(Bytes.toBytes(firstUid), Bytes.toBytes(lastUid), new byte[]{BLOCK_MARKER});
+    }
+
+    /**
+     * @param uids sorted uids
+     * @param length number of uids to encode
+     * @return encodedBlock
+     * @throws IOException
+     */
+    public static byte[] encode(long[] uids, int length) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer(length * 2 + 4);
+        WritableUtils.writeVLong(out, length);
+        long previous = 0;
+        for (int i = 0; i < length; i++) {
+            WritableUtils.writeVLong(out, uids[i] - previous);
+            previous = uids[i];
+        }
+        return Arrays.copyOf(out.getData(), out.getLength());
+    }
+
+    public static long[] decode(byte[] buffer, int offset, int length) throws IOException {
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(buffer, offset, length);
+        long[] uids = new long[(int) WritableUtils.readVLong(in)];
+        long previous = 0;
+        for (int i = 0; i < uids.length; i++) {
+            previous += WritableUtils.readVLong(in);
+            uids[i] = previous;
+        }
+        return uids;
+    }
+
+    /**
+     * adds the uids held by a posting cell, a single uid or a whole block
+     *
+     * @param qualifier
+     * @param value
+     * @param uids
+     * @throws IOException
+     */
+    public static void addUids(byte[] qualifier, byte[] value, UidSet uids) throws IOException {
+        if (isBlock(qualifier.length)) {
+            for (long uid : decode(value, 0, value.length))
+                uids.add(uid);
+        } else {
+            uids.add(Bytes.toLong(qualifier));
+        }
+    }
+
+    public static void addUids(KeyValue kv, UidSet uids) throws IOException {
+        if (isBlock(kv.getQualifierLength())) {
+            for (long uid : decode(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength()))
+                uids.add(uid);
+        } else {
+            uids.add(Bytes.toLong(kv.getBuffer(), kv.getQualifierOffset()));
+        }
+    }
+
+    /**
+     * @param rowBuffer
+     * @param rowOffset
+     * @param rowLength
+     * @return true for the term rows, the only rows whose cells are packed
+     */
+    public static boolean isPackable(byte[] rowBuffer, int rowOffset, int rowLength) {
+        if (rowLength <= RowKeys.FIELD_PREFIX_LENGTH)
+            return false;
+        byte field = rowBuffer[rowOffset + RowKeys.MAILBOX_ID_LENGTH];
+        return field != MessageFields.FLAGS_FIELD.id && field != MessageFields.DOCUMENT_FIELD.id
+                && field != MessageFields.TOMBSTONE_FIELD.id && field != MessageFields.FLAG_POSTING_FIELD.id
+                && field != MessageFields.GRAM_FIELD.id;
+    }
+}
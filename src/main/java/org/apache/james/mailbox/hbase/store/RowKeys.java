@@ -0,0 +1,164 @@
+package org.apache.james.mailbox.hbase.store;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.apache.james.mailbox.hbase.store.MessageFields.CHECKPOINT_FIELD;
+import static org.apache.james.mailbox.hbase.store.MessageFields.DOCUMENT_FIELD;
+import static org.apache.james.mailbox.hbase.store.MessageFields.NOT_FOUND;
+
+/**
+ * layout of the index row keys: mailboxId(16 bytes) | field(1 byte) | term.
+ * Keys are encoded straight into an array of their final size, and decoded from an offset and a length
+ * in the buffer holding them, so that reading the keys of a scan does not copy them.
+ */
+public final class RowKeys {
+    public static final int MAILBOX_ID_LENGTH = 16;
+    public static final int FIELD_PREFIX_LENGTH = MAILBOX_ID_LENGTH + 1;
+
+    private RowKeys() {
+    }
+
+    public static byte[] mailboxId(UUID uuid) {
+        byte[] mailboxId = new byte[MAILBOX_ID_LENGTH];
+        Bytes.putLong(mailboxId, 0, uuid.getMostSignificantBits());
+        Bytes.putLong(mailboxId, Bytes.SIZEOF_LONG, uuid.getLeastSignificantBits());
+        return mailboxId;
+    }
+
+    /**
+     * @param buffer
+     * @param rowOffset
+     * @return the mailbox of the row
+     */
+    public static UUID mailboxUUID(byte[] buffer, int rowOffset) {
+        return new UUID(Bytes.toLong(buffer, rowOffset), Bytes.toLong(buffer, rowOffset + Bytes.SIZEOF_LONG));
+    }
+
+    /**
+     * @param buffer
+     * @param rowOffset
+     * @param rowLength
+     * @return the field of the row or NOT_FOUND when the row is too short to have one
+     */
+    public static MessageFields field(byte[] buffer, int rowOffset, int rowLength) {
+        if (rowLength < FIELD_PREFIX_LENGTH)
+            return NOT_FOUND;
+        return MessageFields.byId(buffer[rowOffset + MAILBOX_ID_LENGTH]);
+    }
+
+    public static int termOffset(int rowOffset) {
+        return rowOffset + FIELD_PREFIX_LENGTH;
+    }
+
+    public static int termLength(int rowLength) {
+        return Math.max(0, rowLength - FIELD_PREFIX_LENGTH);
+    }
+
+    public static String term(byte[] buffer, int rowOffset, int rowLength) {
+        return Bytes.toString(buffer, termOffset(rowOffset), termLength(rowLength));
+    }
+
+    /**
+     * @param mailboxId
+     * @param field
+     * @return mailboxId | field, the common prefix of all the rows of the field
+     */
+    public static byte[] fieldPrefix(byte[] mailboxId, MessageFields field) {
+        return row(mailboxId, field.id, null, 0, 0);
+    }
+
+    public static byte[] row(byte[] mailboxId, byte field, byte[] term) {
+        return row(mailboxId, field, term, 0, term.length);
+    }
+
+    public static byte[] row(byte[] mailboxId, byte field, byte[] term, int termOffset, int termLength) {
+        byte[] row = new byte[FIELD_PREFIX_LENGTH + termLength];
+        System.arraycopy(mailboxId, 0, row, 0, MAILBOX_ID_LENGTH);
+        row[MAILBOX_ID_LENGTH] = field;
+        if (termLength > 0)
+            System.arraycopy(term, termOffset, row, FIELD_PREFIX_LENGTH, termLength);
+        return row;
+    }
+
+    /**
+     * @param mailboxId
+     * @param suffix field | term
+     * @return the row key
+     */
+    public static byte[] row(byte[] mailboxId, byte[] suffix) {
+        byte[] row = new byte[MAILBOX_ID_LENGTH + suffix.length];
+        System.arraycopy(mailboxId, 0, row, 0, MAILBOX_ID_LENGTH);
+        System.arraycopy(suffix, 0, row, MAILBOX_ID_LENGTH, suffix.length);
+        return row;
+    }
+
+    /**
+     * @return field | term, the part of the row key listed by the forward index
+     */
+    public static byte[] suffix(byte field, byte[] term) {
+        byte[] suffix = new byte[1 + term.length];
+        suffix[0] = field;
+        System.arraycopy(term, 0, suffix, 1, term.length);
+        return suffix;
+    }
+
+    public static byte[] suffix(byte[] row) {
+        return Arrays.copyOfRange(row, MAILBOX_ID_LENGTH, row.length);
+    }
+
+    /**
+     * @param mailboxId
+     * @param messageId
+     * @return mailboxId | DOCUMENT_FIELD | messageId, the forward index row of the message
+     */
+    public static byte[] documentRow(byte[] mailboxId, long messageId) {
+        return row(mailboxId, DOCUMENT_FIELD.id, Bytes.toBytes(messageId));
+    }
+
+    /**
+     * @param mailboxId
+     * @return mailboxId | CHECKPOINT_FIELD, the row of the bulk indexing checkpoint of the mailbox
+     */
+    public static byte[] checkpointRow(byte[] mailboxId) {
+        return fieldPrefix(mailboxId, CHECKPOINT_FIELD);
+    }
+
+    /**
+     * the checkpoint row holds no uid, it is left out of the scans of the whole mailbox
+     */
+    public static boolean isCheckpointRow(byte[] buffer, int offset, int length) {
+        return length == FIELD_PREFIX_LENGTH && buffer[offset + MAILBOX_ID_LENGTH] == CHECKPOINT_FIELD.id;
+    }
+
+    /**
+     * the smallest row key that is greater than the row key, to be used as an exclusive stop row when the
+     * row itself has to be included
+     *
+     * @param row
+     * @return row | 0x00
+     */
+    public static byte[] rowSuccessor(byte[] row) {
+        return Arrays.copyOf(row, row.length + 1);
+    }
+
+    /**
+     * the smallest row key that is greater than every key starting with the prefix,
+     * to be used as an exclusive stop row
+     *
+     * @param prefix
+     * @return stopRow or an empty array when the prefix is all 0xFF (scan to the end of the table)
+     */
+    public static byte[] prefixSuccessor(byte[] prefix) {
+        byte[] successor = Arrays.copyOf(prefix, prefix.length);
+        for (int i = successor.length - 1; i >= 0; i--) {
+            if (successor[i] != (byte) 0xFF) {
+                successor[i]++;
+                return Arrays.copyOf(successor, i + 1);
+            }
+        }
+        return new byte[0];
+    }
+}
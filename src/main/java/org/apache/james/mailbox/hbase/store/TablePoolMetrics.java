@@ -0,0 +1,60 @@
+package org.apache.james.mailbox.hbase.store;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * counters for the table handles {@link HBaseIndexStore} takes out of its pool. The pool never makes a
+ * caller wait, it opens a new handle when none is idle, so a peak in use above the pool size is the sign
+ * of handles opened and closed again on every call.
+ */
+public class TablePoolMetrics {
+    private final int maxPoolSize;
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger peakInUse = new AtomicInteger();
+    private final AtomicLong acquisitions = new AtomicLong();
+
+    TablePoolMetrics(int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    void acquired() {
+        acquisitions.incrementAndGet();
+        int current = inUse.incrementAndGet();
+        int peak = peakInUse.get();
+        while (current > peak && !peakInUse.compareAndSet(peak, current))
+            peak = peakInUse.get();
+    }
+
+    void released() {
+        inUse.decrementAndGet();
+    }
+
+    /**
+     * @return number of idle table handles the pool keeps at most
+     */
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * @return number of table handles currently checked out of the pool
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    public int getPeakInUse() {
+        return peakInUse.get();
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TablePoolMetrics{maxPoolSize=" + maxPoolSize + ", inUse=" + getInUse()
+                + ", peakInUse=" + getPeakInUse() + ", acquisitions=" + getAcquisitions() + "}";
+    }
+}
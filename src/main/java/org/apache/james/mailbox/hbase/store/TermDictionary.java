@@ -0,0 +1,160 @@
+package org.apache.james.mailbox.hbase.store;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.apache.james.mailbox.hbase.store.HBaseNames.COLUMN_FAMILY;
+
+/**
+ * Optional dictionary shared by all the mailboxes, giving each term of the text fields a numeric id.
+ * The term rows of the index are then keyed mailboxId | field | 0x00 | vlong id instead of carrying the
+ * whole term, the 0x00 byte keeps them apart from the rows keyed by term, no token starts with it.
+ * <ul>
+ * <li>TERMS table, row: term, column ID_QUALIFIER: the 8 bytes id</li>
+ * <li>row COUNTER_ROW holds the last allocated id</li>
+ * </ul>
+ * The ids of the terms missing from a batch are reserved with a single increment of the counter, then each
+ * is claimed with a check and put, a writer losing the race reads the id of the winner. Ids are never
+ * reused, so the client and region server caches never go stale.
+ * The substring searches need the text of the terms: with the dictionary, the candidate terms always come
+ * from the {@link TermGrams} rows and are then translated to ids. Enabling it requires a reindex.
+ */
+public class TermDictionary {
+    /**
+     * keys the term rows by term id, implies the {@link TermGrams} rows. Only read by the clients, which tell
+     * the region servers with every search, all the clients writing to the index need the same value
+     */
+    public static final String ENABLED = "hbaluin.index.dictionary";
+    /**
+     * number of term ids cached by each client and region server
+     */
+    public static final String CACHE_SIZE = "hbaluin.index.dictionary.cache.size";
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+
+    public static final byte[] TERMS_TABLE = Bytes.toBytes("TERMS");
+    public static final byte ID_MARKER = 0x00;
+    private static final byte[] COUNTER_ROW = new byte[]{0x00};
+    private static final byte[] COUNTER_QUALIFIER = Bytes.toBytes("c");
+    private static final byte[] ID_QUALIFIER = Bytes.toBytes("i");
+
+    private final Cache<ByteBuffer, Long> ids;
+
+    public TermDictionary(int cacheSize) {
+        this.ids = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+    }
+
+    public static HTableDescriptor createTableDescriptor() {
+        HTableDescriptor htd = new HTableDescriptor(TERMS_TABLE);
+        HColumnDescriptor family = new HColumnDescriptor(COLUMN_FAMILY.name);
+        family.setBloomFilterType(StoreFile.BloomType.ROW);
+        htd.addFamily(family);
+        return htd;
+    }
+
+    /**
+     * @param id
+     * @return the term part of the row keys of the term
+     * @throws IOException
+     */
+    public static byte[] idTerm(long id) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer(10);
+        out.writeByte(ID_MARKER);
+        WritableUtils.writeVLong(out, id);
+        return Arrays.copyOf(out.getData(), out.getLength());
+    }
+
+    /**
+     * translates the terms with one batch read of the dictionary for those which are not cached
+     *
+     * @param table    the TERMS table
+     * @param terms
+     * @param allocate true to give an id to the terms which do not have one yet
+     * @return the ids of the terms, terms without id are missing when allocate is false
+     * @throws IOException
+     */
+    public Map<byte[], Long> resolve(HTableInterface table, Collection<byte[]> terms, boolean allocate)
+            throws IOException {
+        Map<byte[], Long> resolved = new TreeMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+        List<byte[]> missing = Lists.newArrayList();
+        for (byte[] term : terms) {
+            Long id = ids.getIfPresent(ByteBuffer.wrap(term));
+            if (id != null)
+                resolved.put(term, id);
+            else if (!resolved.containsKey(term))
+                missing.add(term);
+        }
+        if (missing.isEmpty())
+            return resolved;
+
+        List<Get> gets = Lists.newArrayListWithCapacity(missing.size());
+        for (byte[] term : missing) {
+            Get get = new Get(term);
+            get.addColumn(COLUMN_FAMILY.name, ID_QUALIFIER);
+            gets.add(get);
+        }
+        Result[] results = table.get(gets);
+        List<byte[]> unallocated = Lists.newArrayList();
+        for (int i = 0; i < results.length; i++) {
+            byte[] term = missing.get(i);
+            byte[] value = results[i].getValue(COLUMN_FAMILY.name, ID_QUALIFIER);
+            if (value != null)
+                cache(resolved, term, Bytes.toLong(value));
+            else if (allocate)
+                unallocated.add(term);
+        }
+        if (!unallocated.isEmpty())
+            allocate(table, unallocated, resolved);
+        return resolved;
+    }
+
+    private void cache(Map<byte[], Long> resolved, byte[] term, long id) {
+        resolved.put(term, id);
+        ids.put(ByteBuffer.wrap(term), id);
+    }
+
+    /**
+     * gives ids to distinct terms which had none when they were read
+     */
+    private void allocate(HTableInterface table, List<byte[]> terms, Map<byte[], Long> resolved)
+            throws IOException {
+        // one increment reserves the ids of all the terms
+        long id = table.incrementColumnValue(COUNTER_ROW, COLUMN_FAMILY.name, COUNTER_QUALIFIER, terms.size())
+                - terms.size();
+        List<Get> lost = Lists.newArrayList();
+        for (byte[] term : terms) {
+            Put put = new Put(term);
+            put.add(COLUMN_FAMILY.name, ID_QUALIFIER, Bytes.toBytes(++id));
+            if (table.checkAndPut(term, COLUMN_FAMILY.name, ID_QUALIFIER, null, put)) {
+                cache(resolved, term, id);
+            } else {
+                // another writer has given the term an id first, the reserved id is lost
+                Get get = new Get(term);
+                get.addColumn(COLUMN_FAMILY.name, ID_QUALIFIER);
+                lost.add(get);
+            }
+        }
+        if (lost.isEmpty())
+            return;
+        for (Result result : table.get(lost))
+            cache(resolved, result.getRow(), Bytes.toLong(result.getValue(COLUMN_FAMILY.name, ID_QUALIFIER)));
+    }
+}
@@ -0,0 +1,46 @@
+package org.apache.james.mailbox.hbase.store;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Number of times a term is found in a message, kept in the value of the single uid cells of the term rows
+ * when {@link #ENABLED} is set. The searches only read the qualifiers. The count is a one byte vint for up
+ * to 127 occurrences, an empty value is a count unknown, written before the option or by other rows.
+ * Packing the cells into {@link PostingBlocks} drops the counts.
+ */
+public final class TermFrequency {
+    /**
+     * when true the term cells hold the number of occurrences of the term in the message
+     */
+    public static final String ENABLED = "hbaluin.index.term.frequency";
+
+    private TermFrequency() {
+    }
+
+    public static byte[] encode(int count) throws IOException {
+        if (count <= 127)
+            return new byte[]{(byte) count};
+        DataOutputBuffer out = new DataOutputBuffer(5);
+        WritableUtils.writeVInt(out, count);
+        return Arrays.copyOf(out.getData(), out.getLength());
+    }
+
+    /**
+     * @return the count, 0 when unknown
+     */
+    public static int decode(byte[] buffer, int offset, int length) {
+        if (length == 0)
+            return 0;
+        byte first = buffer[offset];
+        if (first >= -112)
+            return first;
+        int count = 0;
+        for (int i = 1; i < length; i++)
+            count = (count << 8) | (buffer[offset + i] & 0xFF);
+        return count;
+    }
+}
@@ -0,0 +1,104 @@
+package org.apache.james.mailbox.hbase.store;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.apache.james.mailbox.hbase.store.MessageFields.GRAM_FIELD;
+
+/**
+ * Optional n-gram index of the terms of the text fields, used to answer substring searches without
+ * reading every term row of a field:
+ * <ul>
+ * <li>row: mailboxId | GRAM_FIELD | field | gram, the gram being GRAM_LENGTH bytes of a term</li>
+ * <li>one empty column per term of the field which contains the gram, the qualifier is the term</li>
+ * </ul>
+ * A search intersects the terms of all the grams of the searched value, checks that the candidate terms
+ * really contain the value and reads the term rows of the remaining ones. The end of a term is also
+ * listed under its last positions padded with PAD bytes, so that every position of every term starts a
+ * gram: a value shorter than a gram only reads the gram rows starting with it.
+ * <p/>
+ * The gram rows are not touched when messages are deleted, a term whose rows are gone stays listed and
+ * costs one empty read until {@link HBaseIndexStore#purgeGrams} drops it.
+ * Mailboxes indexed before the gram rows were enabled, or before the padded grams, have to be reindexed.
+ */
+public final class TermGrams {
+    /**
+     * writes the gram rows when indexing. Only read by the clients, which tell the region servers with every
+     * search whether to use the gram rows: all the clients writing to the index need the same value
+     */
+    public static final String ENABLED = "hbaluin.index.ngrams";
+    /**
+     * age in milliseconds under which {@link HBaseIndexStore#purgeGrams} keeps a gram cell, the term rows
+     * written along with it may not have landed yet
+     */
+    public static final String PURGE_GRACE = "hbaluin.index.ngrams.purge.grace";
+    public static final long DEFAULT_PURGE_GRACE = 60000;
+    public static final int GRAM_LENGTH = 3;
+    /**
+     * fills the grams at the end of a term, no token contains it
+     */
+    public static final byte PAD = 0x00;
+
+    private TermGrams() {
+    }
+
+    /**
+     * @param field
+     * @return true for the fields whose terms are searched by substring
+     */
+    public static boolean isIndexed(MessageFields field) {
+        return !NumericTerms.isNumeric(field);
+    }
+
+    public static byte[] row(byte[] mailboxId, MessageFields field, byte[] gram) {
+        byte[] row = new byte[RowKeys.FIELD_PREFIX_LENGTH + 1 + gram.length];
+        System.arraycopy(mailboxId, 0, row, 0, RowKeys.MAILBOX_ID_LENGTH);
+        row[RowKeys.MAILBOX_ID_LENGTH] = GRAM_FIELD.id;
+        row[RowKeys.FIELD_PREFIX_LENGTH] = field.id;
+        System.arraycopy(gram, 0, row, RowKeys.FIELD_PREFIX_LENGTH + 1, gram.length);
+        return row;
+    }
+
+    /**
+     * @param term
+     * @return the distinct grams of the term, none when the term is shorter than a gram
+     */
+    public static Set<byte[]> grams(byte[] term) {
+        Set<byte[]> grams = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+        for (int i = 0; i + GRAM_LENGTH <= term.length; i++)
+            grams.add(Arrays.copyOfRange(term, i, i + GRAM_LENGTH));
+        return grams;
+    }
+
+    /**
+     * @param term
+     * @return the gram rows listing the term: one starting at every position of the term, the ones running
+     * past its end are padded
+     */
+    public static Set<byte[]> indexedGrams(byte[] term) {
+        byte[] padded = Arrays.copyOf(term, term.length + GRAM_LENGTH - 1);
+        Arrays.fill(padded, term.length, padded.length, PAD);
+        Set<byte[]> grams = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+        for (int i = 0; i < term.length; i++)
+            grams.add(Arrays.copyOfRange(padded, i, i + GRAM_LENGTH));
+        return grams;
+    }
+
+    public static boolean isGramRow(byte[] buffer, int offset, int length) {
+        return length > RowKeys.FIELD_PREFIX_LENGTH && buffer[offset + RowKeys.MAILBOX_ID_LENGTH] == GRAM_FIELD.id;
+    }
+
+    /**
+     * @return true if the value is found in buffer[offset, offset + length)
+     */
+    public static boolean contains(byte[] buffer, int offset, int length, byte[] value) {
+        int last = offset + length - value.length;
+        for (int i = offset; i <= last; i++)
+            if (Bytes.equals(buffer, i, value.length, value, 0, value.length))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,68 @@
+package org.apache.james.mailbox.hbase.store;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+
+import static org.apache.james.mailbox.hbase.store.HBaseNames.COLUMN_FAMILY;
+import static org.apache.james.mailbox.hbase.store.HBaseNames.INDEX_TABLE;
+import static org.apache.james.mailbox.hbase.store.MessageFields.TOMBSTONE_FIELD;
+
+/**
+ * The tombstone row of a mailbox, mailboxId | TOMBSTONE_FIELD, holds one empty column per deleted uid.
+ * Searches mask those uids and {@link org.apache.james.mailbox.hbase.store.observer.IndexCompactionObserver}
+ * drops their cells from the other rows of the mailbox when the store files are compacted.
+ * A tombstone is dropped in turn once no cell of its uid is left: by the full compactions of a region
+ * holding the whole mailbox, or by {@link HBaseIndexStore#purgeTombstones}.
+ */
+public final class Tombstones {
+
+    private Tombstones() {
+    }
+
+    public static byte[] row(byte[] mailboxId) {
+        return RowKeys.fieldPrefix(mailboxId, TOMBSTONE_FIELD);
+    }
+
+    public static boolean isTombstoneRow(byte[] buffer, int offset, int length) {
+        return length == RowKeys.FIELD_PREFIX_LENGTH
+                && buffer[offset + RowKeys.MAILBOX_ID_LENGTH] == TOMBSTONE_FIELD.id;
+    }
+
+    /**
+     * reads the deleted uids of a mailbox from inside a region coprocessor, straight from the region
+     * when it holds the tombstone row and through the table otherwise
+     *
+     * @param environment
+     * @param mailboxId
+     * @return deletedUids
+     * @throws IOException
+     */
+    public static UidSet load(RegionCoprocessorEnvironment environment, byte[] mailboxId) throws IOException {
+        byte[] row = row(mailboxId);
+        Get get = new Get(row);
+        get.addFamily(COLUMN_FAMILY.name);
+        Result result;
+        if (HRegion.rowIsInRange(environment.getRegion().getRegionInfo(), row)) {
+            result = environment.getRegion().get(get, null);
+        } else {
+            HTableInterface table = environment.getTable(INDEX_TABLE.name);
+            try {
+                result = table.get(get);
+            } finally {
+                table.close();
+            }
+        }
+        UidSet uids = new UidSet(result.size());
+        if (!result.isEmpty())
+            for (KeyValue kv : result.raw())
+                uids.add(Bytes.toLong(kv.getBuffer(), kv.getQualifierOffset()));
+        return uids;
+    }
+}
@@ -0,0 +1,240 @@
+package org.apache.james.mailbox.hbase.store;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Set of message uids kept as a sorted array of primitive longs. Uids can be added in any order, they
+ * are sorted and deduplicated the first time the set is read, the postings of one row already come in
+ * ascending order so this is usually a no-op. Iteration is in ascending order, as IMAP wants the uids.
+ * <p/>
+ * On the wire the set is its size followed by the gaps between consecutive uids as vlongs, dense uids
+ * take one byte each.
+ */
+public final class UidSet implements Iterable<Long>, Writable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] uids;
+    private int size;
+    private boolean sorted = true;
+
+    public UidSet() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public UidSet(int capacity) {
+        this.uids = new long[Math.max(capacity, 1)];
+    }
+
+    public static UidSet of(long... values) {
+        UidSet set = new UidSet(values.length);
+        for (long value : values)
+            set.add(value);
+        return set;
+    }
+
+    public void add(long uid) {
+        if (size == uids.length)
+            uids = Arrays.copyOf(uids, size + (size >> 1) + 1);
+        if (size > 0 && uid <= uids[size - 1])
+            sorted = false;
+        uids[size++] = uid;
+    }
+
+    public void addAll(UidSet other) {
+        other.compact();
+        for (int i = 0; i < other.size; i++)
+            add(other.uids[i]);
+    }
+
+    public int size() {
+        compact();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(long uid) {
+        compact();
+        return Arrays.binarySearch(uids, 0, size, uid) >= 0;
+    }
+
+    /**
+     * keeps the uids which are also in the other set
+     */
+    public void retainAll(UidSet other) {
+        compact();
+        other.compact();
+        int kept = 0;
+        for (int i = 0, j = 0; i < size && j < other.size; ) {
+            if (uids[i] < other.uids[j]) {
+                i++;
+            } else if (uids[i] > other.uids[j]) {
+                j++;
+            } else {
+                uids[kept++] = uids[i++];
+                j++;
+            }
+        }
+        size = kept;
+    }
+
+    /**
+     * removes the uids which are in the other set
+     */
+    public void removeAll(UidSet other) {
+        if (other.isEmpty() || isEmpty())
+            return;
+        compact();
+        other.compact();
+        int kept = 0;
+        for (int i = 0, j = 0; i < size; i++) {
+            while (j < other.size && other.uids[j] < uids[i])
+                j++;
+            if (j == other.size || other.uids[j] != uids[i])
+                uids[kept++] = uids[i];
+        }
+        size = kept;
+    }
+
+    /**
+     * @return the sorted uids
+     */
+    public long[] toArray() {
+        compact();
+        return Arrays.copyOf(uids, size);
+    }
+
+    /**
+     * merges sets which are each sorted, such as the results of the regions, into one sorted set
+     *
+     * @param sets
+     * @return union
+     */
+    public static UidSet union(Collection<UidSet> sets) {
+        int total = 0;
+        PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>(Math.max(sets.size(), 1));
+        for (UidSet set : sets) {
+            set.compact();
+            total += set.size;
+            if (set.size > 0)
+                cursors.add(new Cursor(set));
+        }
+        UidSet union = new UidSet(total);
+        while (!cursors.isEmpty()) {
+            Cursor cursor = cursors.poll();
+            long uid = cursor.current();
+            if (union.size == 0 || union.uids[union.size - 1] != uid)
+                union.uids[union.size++] = uid;
+            if (cursor.advance())
+                cursors.add(cursor);
+        }
+        return union;
+    }
+
+    @Override
+    public Iterator<Long> iterator() {
+        compact();
+        return new Iterator<Long>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Long next() {
+                if (next >= size)
+                    throw new NoSuchElementException();
+                return uids[next++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * sorts and deduplicates the uids added out of order, a set shared between threads has to be compacted
+     * before it is published as the readers would otherwise compact it concurrently
+     */
+    public void compact() {
+        if (sorted)
+            return;
+        Arrays.sort(uids, 0, size);
+        int distinct = 0;
+        for (int i = 0; i < size; i++)
+            if (distinct == 0 || uids[distinct - 1] != uids[i])
+                uids[distinct++] = uids[i];
+        size = distinct;
+        sorted = true;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        compact();
+        WritableUtils.writeVInt(out, size);
+        long previous = 0;
+        for (int i = 0; i < size; i++) {
+            WritableUtils.writeVLong(out, uids[i] - previous);
+            previous = uids[i];
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        size = WritableUtils.readVInt(in);
+        if (uids.length < size)
+            uids = new long[size];
+        long previous = 0;
+        for (int i = 0; i < size; i++) {
+            previous += WritableUtils.readVLong(in);
+            uids[i] = previous;
+        }
+        sorted = true;
+    }
+
+    @Override
+    public String toString() {
+        compact();
+        return Arrays.toString(Arrays.copyOf(uids, size));
+    }
+
+    private static final class Cursor implements Comparable<Cursor> {
+        private final UidSet set;
+        private int position;
+
+        Cursor(UidSet set) {
+            this.set = set;
+        }
+
+        long current() {
+            return set.uids[position];
+        }
+
+        boolean advance() {
+            return ++position < set.size;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            long current = current();
+            long otherCurrent = other.current();
+            return current < otherCurrent ? -1 : (current == otherCurrent ? 0 : 1);
+        }
+    }
+}
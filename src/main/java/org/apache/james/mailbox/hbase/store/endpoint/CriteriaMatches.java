@@ -0,0 +1,57 @@
+package org.apache.james.mailbox.hbase.store.endpoint;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.james.mailbox.hbase.store.UidSet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The uids of one region matching each criterion of a {@link SearchCriteria}, in the same order.
+ * Written as the number of sets followed by the sets, without the class name the RPC layer would
+ * otherwise write in front of every element of a list.
+ */
+public class CriteriaMatches implements Writable {
+    private UidSet[] matches;
+
+    /**
+     * for the RPC layer
+     */
+    public CriteriaMatches() {
+        this(0);
+    }
+
+    public CriteriaMatches(int size) {
+        this.matches = new UidSet[size];
+    }
+
+    public int size() {
+        return matches.length;
+    }
+
+    public UidSet get(int criterion) {
+        return matches[criterion];
+    }
+
+    public void set(int criterion, UidSet uids) {
+        matches[criterion] = uids;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, matches.length);
+        for (UidSet uids : matches)
+            uids.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        matches = new UidSet[WritableUtils.readVInt(in)];
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = new UidSet();
+            matches[i].readFields(in);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.apache.james.mailbox.hbase.store.endpoint;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.james.mailbox.hbase.store.RowKeys;
+import org.apache.james.mailbox.hbase.store.TermGrams;
+import org.apache.james.mailbox.hbase.store.UidSet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decoded uids of the queries answered by one region, keyed mailboxId | field | query. The cache is shared
+ * by the {@link RowFilteringEndpoint} and the {@link org.apache.james.mailbox.hbase.store.observer.PostingCacheObserver}
+ * of the region, which has to be loaded along with the endpoint. Both take the cache when they start and give
+ * it back when they stop, it is dropped once neither holds it.
+ * <p/>
+ * Every write to a row of mailboxId | field gives that prefix a new generation, the entries of an older
+ * generation are ignored. The generation is read before the rows, so a result read while a write
+ * is being applied can not outlive it. Tombstones are not part of the cached results, they are applied
+ * on every search.
+ */
+public class PostingCache {
+    /**
+     * number of uids cached by each region, 0 disables the cache
+     */
+    public static final String SIZE = "hbaluin.index.posting.cache.size";
+    public static final long DEFAULT_SIZE = 0;
+
+    private static final int MAX_GENERATIONS = 100000;
+    private static final ConcurrentMap<String, PostingCache> REGIONS = new ConcurrentHashMap<String, PostingCache>();
+
+    private final Cache<ByteBuffer, Entry> postings;
+    private final Cache<ByteBuffer, Long> generations;
+    private final AtomicLong lastGeneration = new AtomicLong();
+    /**
+     * number of coprocessors of the region holding the cache, guarded by REGIONS
+     */
+    private int references;
+
+    PostingCache(long size) {
+        this.postings = CacheBuilder.newBuilder().maximumWeight(size).weigher(new Weigher<ByteBuffer, Entry>() {
+            @Override
+            public int weigh(ByteBuffer key, Entry entry) {
+                return entry.uids.size() + 1;
+            }
+        }).build();
+        this.generations = CacheBuilder.newBuilder().maximumSize(MAX_GENERATIONS).build();
+    }
+
+    /**
+     * @param environment
+     * @return the cache of the region, null when disabled
+     */
+    public static PostingCache forRegion(RegionCoprocessorEnvironment environment) {
+        long size = environment.getConfiguration().getLong(SIZE, DEFAULT_SIZE);
+        if (size <= 0)
+            return null;
+        String region = environment.getRegion().getRegionNameAsString();
+        synchronized (REGIONS) {
+            PostingCache cache = REGIONS.get(region);
+            if (cache == null) {
+                cache = new PostingCache(size);
+                REGIONS.put(region, cache);
+            }
+            cache.references++;
+            return cache;
+        }
+    }
+
+    /**
+     * gives back the cache taken by {@link #forRegion}, the cache of the region is dropped with its last holder
+     */
+    public static void release(RegionCoprocessorEnvironment environment) {
+        String region = environment.getRegion().getRegionNameAsString();
+        synchronized (REGIONS) {
+            PostingCache cache = REGIONS.get(region);
+            if (cache != null && --cache.references == 0)
+                REGIONS.remove(region);
+        }
+    }
+
+    /**
+     * a compaction of the region has dropped tombstoned cells: the cached results, which are only masked by
+     * the tombstones, would bring the messages back once their tombstones are purged in turn
+     */
+    public static void invalidateRegion(RegionCoprocessorEnvironment environment) {
+        PostingCache cache = REGIONS.get(environment.getRegion().getRegionNameAsString());
+        if (cache != null) {
+            // the entries put by the searches running meanwhile carry a generation which is gone
+            cache.generations.invalidateAll();
+            cache.postings.invalidateAll();
+        }
+    }
+
+    /**
+     * @param key mailboxId | field | query
+     * @return the cached uids, not to be modified, null when missing
+     */
+    public UidSet get(byte[] key) {
+        Long generation = generations.getIfPresent(prefix(key));
+        if (generation == null)
+            return null;
+        Entry entry = postings.getIfPresent(ByteBuffer.wrap(key));
+        return entry != null && entry.generation == generation ? entry.uids : null;
+    }
+
+    /**
+     * @return the generation to give to {@link #put} along with the uids read after this call
+     */
+    public long generation(byte[] key) {
+        ByteBuffer prefix = prefix(key);
+        Long generation = generations.getIfPresent(prefix);
+        if (generation == null) {
+            generations.asMap().putIfAbsent(prefix, lastGeneration.incrementAndGet());
+            generation = generations.getIfPresent(prefix);
+        }
+        // evicted meanwhile, nothing can be cached for the prefix
+        return generation == null ? -1 : generation;
+    }
+
+    public void put(byte[] key, long generation, UidSet uids) {
+        uids.compact();
+        postings.put(ByteBuffer.wrap(key), new Entry(uids, generation));
+    }
+
+    /**
+     * a row has been written or deleted, the cached results of its field are stale
+     */
+    public void invalidate(byte[] buffer, int rowOffset, int rowLength) {
+        if (rowLength < RowKeys.FIELD_PREFIX_LENGTH)
+            return;
+        byte[] prefix = Arrays.copyOfRange(buffer, rowOffset, rowOffset + RowKeys.FIELD_PREFIX_LENGTH);
+        // the gram rows mailboxId | GRAM_FIELD | field | gram belong to the substring queries of the field
+        if (TermGrams.isGramRow(buffer, rowOffset, rowLength))
+            prefix[RowKeys.MAILBOX_ID_LENGTH] = buffer[rowOffset + RowKeys.FIELD_PREFIX_LENGTH];
+        generations.put(ByteBuffer.wrap(prefix), lastGeneration.incrementAndGet());
+    }
+
+    private static ByteBuffer prefix(byte[] key) {
+        return ByteBuffer.wrap(Arrays.copyOf(key, RowKeys.FIELD_PREFIX_LENGTH));
+    }
+
+    private static final class Entry {
+        private final UidSet uids;
+        private final long generation;
+
+        Entry(UidSet uids, long generation) {
+            this.uids = uids;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.apache.james.mailbox.hbase.store.endpoint;
+
+import com.google.common.collect.Lists;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.james.mailbox.hbase.store.MessageFields;
+import org.apache.james.mailbox.hbase.store.NumericTerms;
+import org.apache.james.mailbox.hbase.store.RowKeys;
+import org.apache.james.mailbox.hbase.store.TermGrams;
+import org.apache.lucene.document.DateTools;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps a (field, term) query to the narrowest range of row keys which can hold its matches.
+ * The rows of a field all start with mailboxId | field, so every query is bounded to that prefix:
+ * <ul>
+ * <li>SENT_DATE_FIELD and UID_FIELD: the {@link NumericTerms} sort like the values, the range goes from the
+ * lower to the upper bound, a second range covers the legacy format while it is still read</li>
+ * <li>the text fields: the whole field prefix, the rows whose term does not contain the query term are
+ * skipped by {@link KeyRange#matches(byte[])}. When the {@link TermGrams} rows are enabled the endpoint
+ * reads those instead of the range for the values long enough to have a gram</li>
+ * </ul>
+ */
+public final class QueryPlanner {
+
+    private final static Date MAX_DATE;
+    private final static Date MIN_DATE;
+
+    static {
+        Calendar cal = Calendar.getInstance();
+        cal.set(9999, 11, 31);
+        MAX_DATE = cal.getTime();
+
+        cal.set(0000, 0, 1);
+        MIN_DATE = cal.getTime();
+    }
+
+    private QueryPlanner() {
+    }
+
+    /**
+     * @param mailboxId
+     * @param field
+     * @param query the query string as built by the search index listener
+     * @param legacy true to also read the numeric rows written in the 19 digits format
+     * @return ranges to scan for the query
+     */
+    public static List<KeyRange> plan(byte[] mailboxId, MessageFields field, String query, boolean legacy) {
+        String term = query.toUpperCase(Locale.ENGLISH);
+        byte[] prefix = RowKeys.fieldPrefix(mailboxId, field);
+        switch (field) {
+            case SENT_DATE_FIELD:
+                int separatorIndex = term.indexOf("|");
+                long time = Long.parseLong(term.substring(separatorIndex + 1));
+                long max = getMaxResolution(term.substring(1, separatorIndex), time);
+                switch (term.charAt(0)) {
+                    case '0'://ON
+                        return numericRanges(mailboxId, field, time, max, legacy);
+                    case '1'://BEFORE
+                        return numericRanges(mailboxId, field, MIN_DATE.getTime(), time, legacy);
+                    case '2'://AFTER
+                        return numericRanges(mailboxId, field, max, MAX_DATE.getTime(), legacy);
+                    default:
+                        throw new IllegalArgumentException("Unknown date operator in " + query);
+                }
+            case UID_FIELD:
+                int separator = term.indexOf(':');
+                return numericRanges(mailboxId, field, Long.parseLong(term.substring(0, separator)),
+                        Long.parseLong(term.substring(separator + 1)), legacy);
+            default:
+                return Collections.singletonList(
+                        new KeyRange(prefix, RowKeys.prefixSuccessor(prefix), Bytes.toBytes(term), -1));
+        }
+    }
+
+    /**
+     * both bounds are inclusive, the terms of a format all have the same length so the first key after
+     * the upper bound is the bound followed by a 0x00 byte
+     */
+    private static List<KeyRange> numericRanges(byte[] mailboxId, MessageFields field, long lower, long upper,
+                                                boolean legacy) {
+        List<KeyRange> ranges = Lists.newArrayListWithCapacity(2);
+        ranges.add(new KeyRange(RowKeys.row(mailboxId, field.id, NumericTerms.encode(lower)),
+                RowKeys.rowSuccessor(RowKeys.row(mailboxId, field.id, NumericTerms.encode(upper))),
+                null, Bytes.SIZEOF_LONG));
+        if (legacy)
+            ranges.add(new KeyRange(RowKeys.row(mailboxId, field.id, Bytes.toBytes(NumericTerms.legacyTerm(lower))),
+                    RowKeys.rowSuccessor(RowKeys.row(mailboxId, field.id, Bytes.toBytes(NumericTerms.legacyTerm(upper)))),
+                    null, -1));
+        return ranges;
+    }
+
+    private static long getMaxResolution(String name, long time) {
+        long diff = 1l;
+        final Calendar max = Calendar.getInstance();
+        max.setTimeInMillis(time);
+        switch (DateTools.Resolution.valueOf(name)) {
+            case YEAR:
+                max.set(Calendar.YEAR, max.get(Calendar.YEAR) + 1);
+                return max.getTimeInMillis();
+            case MONTH:
+                max.set(Calendar.MONTH, max.get(Calendar.MONTH) + 1);
+                return max.getTimeInMillis();
+            case DAY:
+                return time + TimeUnit.DAYS.toMillis(diff);
+            case HOUR:
+                return time + TimeUnit.HOURS.toMillis(diff);
+            case MINUTE:
+                return time + TimeUnit.MINUTES.toMillis(diff);
+            case SECOND:
+                return time + TimeUnit.SECONDS.toMillis(diff);
+            default:
+                return time;
+        }
+    }
+
+    /**
+     * [start, stop) range of row keys, optionally restricted to the rows whose term contains a value
+     */
+    public static final class KeyRange {
+        private final byte[] start;
+        private final byte[] stop;
+        private final byte[] contains;
+        private final int termLength;
+
+        KeyRange(byte[] start, byte[] stop, byte[] contains, int termLength) {
+            this.start = start;
+            this.stop = stop;
+            this.contains = contains;
+            this.termLength = termLength;
+        }
+
+        public byte[] getStart() {
+            return start;
+        }
+
+        public byte[] getStop() {
+            return stop;
+        }
+
+        /**
+         * @return the value the terms have to contain, null for the numeric ranges
+         */
+        public byte[] getContains() {
+            return contains;
+        }
+
+        /**
+         * @param row a row key inside the range
+         * @return true if the term of the row has the length of the range's format and holds the contained value
+         */
+        public boolean matches(byte[] row) {
+            return matches(row, 0, row.length);
+        }
+
+        public boolean matches(byte[] buffer, int rowOffset, int rowLength) {
+            if (termLength >= 0 && rowLength != RowKeys.FIELD_PREFIX_LENGTH + termLength)
+                return false;
+            if (contains == null || contains.length == 0)
+                return true;
+            return TermGrams.contains(buffer, RowKeys.termOffset(rowOffset), RowKeys.termLength(rowLength), contains);
+        }
+    }
+}
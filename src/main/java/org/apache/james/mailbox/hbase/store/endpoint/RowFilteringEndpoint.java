@@ -1,158 +1,333 @@
 package org.apache.james.mailbox.hbase.store.endpoint;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Lists;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.coprocessor.BaseEndpointCoprocessor;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
 import org.apache.hadoop.hbase.filter.*;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.james.mailbox.hbase.store.HBaseNames;
 import org.apache.james.mailbox.hbase.store.MessageFields;
-import org.apache.lucene.document.DateTools;
+import org.apache.james.mailbox.hbase.store.NumericTerms;
+import org.apache.james.mailbox.hbase.store.PostingBlocks;
+import org.apache.james.mailbox.hbase.store.RowKeys;
+import org.apache.james.mailbox.hbase.store.TermDictionary;
+import org.apache.james.mailbox.hbase.store.TermGrams;
+import org.apache.james.mailbox.hbase.store.Tombstones;
+import org.apache.james.mailbox.hbase.store.UidSet;
 
 import java.io.IOException;
-import java.text.NumberFormat;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
 
-import static org.apache.james.mailbox.hbase.index.MessageSearchIndexListener.*;
 import static org.apache.james.mailbox.hbase.store.HBaseNames.COLUMN_FAMILY;
-import static org.apache.james.mailbox.hbase.store.MessageFields.SENT_DATE_FIELD;
 
 public class RowFilteringEndpoint extends BaseEndpointCoprocessor implements RowFilteringProtocol {
 
-    private final static Date MAX_DATE;
-    private final static Date MIN_DATE;
+    /**
+     * shared by the searches of the region, used for the clients which key the term rows by id
+     */
+    private TermDictionary dictionary;
+    /**
+     * decoded results of the queries, null when disabled
+     */
+    private PostingCache postingCache;
 
-    static {
-        Calendar cal = Calendar.getInstance();
-        cal.set(9999, 11, 31);
-        MAX_DATE = cal.getTime();
+    @Override
+    public void start(CoprocessorEnvironment env) {
+        super.start(env);
+        Configuration configuration = env.getConfiguration();
+        // the cache only fills up when a client searches with the dictionary
+        dictionary = new TermDictionary(
+                configuration.getInt(TermDictionary.CACHE_SIZE, TermDictionary.DEFAULT_CACHE_SIZE));
+        postingCache = PostingCache.forRegion((RegionCoprocessorEnvironment) env);
+    }
 
-        cal.set(0000, 0, 1);
-        MIN_DATE = cal.getTime();
+    @Override
+    public void stop(CoprocessorEnvironment env) {
+        if (postingCache != null)
+            PostingCache.release((RegionCoprocessorEnvironment) env);
+        super.stop(env);
     }
 
+    /**
+     * every query is a scan bounded to the key range {@link QueryPlanner} gives for it. The criteria are
+     * answered separately: the rows of one mailbox can span several regions, so only the client, which sees
+     * the results of all of them, can intersect the criteria
+     */
     @Override
-    public Set<Long> filterByQueries(byte[] mailboxId, Multimap<MessageFields, String> queries) throws IOException {
-        Scan scan = new Scan();
-        scan.addFamily(COLUMN_FAMILY.name);
-        FilterList list = new FilterList(FilterList.Operator.MUST_PASS_ONE);
-        for (Map.Entry<MessageFields, String> query : queries.entries()) {
-            String term = query.getValue().toUpperCase(Locale.ENGLISH);
-            byte[] field = new byte[]{query.getKey().id};
-            byte[] prefix = Bytes.add(mailboxId, field);
-            switch (query.getKey()) {
-                case FLAGS_FIELD:
-                    final FilterList flagList = new FilterList(FilterList.Operator.MUST_PASS_ALL);
-                    RowFilter rowFilter = new RowFilter(CompareFilter.CompareOp.EQUAL,
-                            new BinaryComparator(prefix));
-                    ValueFilter valueFilter = new ValueFilter(CompareFilter.CompareOp.EQUAL,
-                            new SubstringComparator(term));
-                    flagList.addFilter(rowFilter);
-                    flagList.addFilter(valueFilter);
-                    list.addFilter(flagList);
-                    break;
-                case SENT_DATE_FIELD:
-                    int separatorIndex = term.indexOf("|");
-                    long time = Long.parseLong(term.substring(separatorIndex + 1));
-                    long max = getMaxResolution(term.substring(1, separatorIndex), time);
-
-                    FilterList timeList = new FilterList(FilterList.Operator.MUST_PASS_ALL);
-                    long lowerBound = 0, upperBound = 0;
-                    switch (term.charAt(0)) {
-                        case '0'://ON
-                            lowerBound = time;
-                            upperBound = max;
-                            break;
-                        case '1'://BEFORE
-                            lowerBound = MIN_DATE.getTime();
-                            upperBound = time;
-                            break;
-                        case '2'://AFTER
-                            lowerBound = max;
-                            upperBound = MAX_DATE.getTime();
-                            break;
-                    }
-                    timeList.addFilter(new RowFilter(CompareFilter.CompareOp.GREATER_OR_EQUAL,
-                            new BinaryComparator(Bytes.add(prefix, Bytes.toBytes(addLongPadding(lowerBound))))));
-                    timeList.addFilter(new RowFilter(CompareFilter.CompareOp.LESS_OR_EQUAL,
-                            new BinaryComparator(Bytes.add(prefix, Bytes.toBytes(addLongPadding(upperBound))))));
-                    list.addFilter(timeList);
-                    break;
-                case UID_FIELD:
-                    int longSize = 19;
-                    long lowValue = Long.parseLong(term.substring(0, longSize));
-                    FilterList uidList = new FilterList(FilterList.Operator.MUST_PASS_ALL);
-                    if(term.length()>longSize){
-                        long highValue = Long.parseLong(term.substring(longSize));
-                        uidList.addFilter(new RowFilter(CompareFilter.CompareOp.GREATER_OR_EQUAL,
-                                new BinaryComparator(Bytes.add(prefix, Bytes.toBytes(addLongPadding(lowValue))))));
-                        uidList.addFilter(new RowFilter(CompareFilter.CompareOp.LESS_OR_EQUAL,
-                                new BinaryComparator(Bytes.add(prefix, Bytes.toBytes(addLongPadding(highValue))))));
-                    } else
-                        uidList.addFilter(new RowFilter(CompareFilter.CompareOp.EQUAL,
-                                new BinaryComparator(Bytes.add(prefix, Bytes.toBytes(addLongPadding(lowValue))))));
-                    list.addFilter(uidList);
-                    break;
-                default:
-                    RowFilter rowFilterPrefix = new RowFilter(CompareFilter.CompareOp.EQUAL,
-                            new BinaryPrefixComparator(Bytes.add(prefix, Bytes.toBytes(term))));
-                    RowFilter rowFilterRegex = new RowFilter(CompareFilter.CompareOp.EQUAL,
-                            new RegexStringComparator(Bytes.toString(prefix) + ".*?" + term + ".*+"));
-                    list.addFilter(rowFilterPrefix);
-                    list.addFilter(rowFilterRegex);
-                    break;
+    public CriteriaMatches filterByQueries(byte[] mailboxId, SearchCriteria criteria)
+            throws IOException {
+        // only the client knows whether it has written the gram rows and keyed the term rows by id
+        TermDictionary dictionary = criteria.isTermDictionary() ? this.dictionary : null;
+        boolean termGrams = dictionary != null || criteria.isTermGrams();
+        boolean legacy = getEnvironment().getConfiguration().getBoolean(NumericTerms.LEGACY, true);
+        CriteriaMatches results = new CriteriaMatches(criteria.size());
+        for (int criterion = 0; criterion < criteria.size(); criterion++) {
+            UidSet uids = new UidSet();
+            for (int query = 0; query < criteria.queryCount(criterion); query++) {
+                MessageFields field = criteria.getField(criterion, query);
+                String term = criteria.getTerm(criterion, query);
+                if (postingCache == null) {
+                    extractIds(mailboxId, field, term, dictionary, termGrams, legacy, uids);
+                    continue;
+                }
+                byte[] key = RowKeys.row(mailboxId, field.id, Bytes.toBytes(term));
+                UidSet cached = postingCache.get(key);
+                if (cached == null) {
+                    long generation = postingCache.generation(key);
+                    cached = new UidSet();
+                    // the observer of this region does not hear about the gram rows written to the others
+                    if (extractIds(mailboxId, field, term, dictionary, termGrams, legacy, cached))
+                        postingCache.put(key, generation, cached);
+                }
+                uids.addAll(cached);
             }
+            results.set(criterion, uids);
         }
-        scan.setFilter(list);
-
-        return extractIds(scan);
+        UidSet tombstones = Tombstones.load((RegionCoprocessorEnvironment) getEnvironment(), mailboxId);
+        if (!tombstones.isEmpty())
+            for (int criterion = 0; criterion < results.size(); criterion++)
+                results.get(criterion).removeAll(tombstones);
+        return results;
     }
 
-    private long getMaxResolution(String name, long time) {
-        long diff = 1l;
-        final Calendar max = Calendar.getInstance();
-        max.setTimeInMillis(time);
-        switch (DateTools.Resolution.valueOf(name)) {
-            case YEAR:
-                max.set(Calendar.YEAR, max.get(Calendar.YEAR) + 1);
-                return max.getTimeInMillis();
-            case MONTH:
-                max.set(Calendar.MONTH, max.get(Calendar.MONTH) + 1);
-                return max.getTimeInMillis();
-            case DAY:
-                return time + TimeUnit.DAYS.toMillis(diff);
-            case HOUR:
-                return time + TimeUnit.HOURS.toMillis(diff);
-            case MINUTE:
-                return time + TimeUnit.MINUTES.toMillis(diff);
-            case SECOND:
-                return time + TimeUnit.SECONDS.toMillis(diff);
-            default:
-                return time;
+    /**
+     * adds the uids of the rows of the region matching one query
+     *
+     * @param dictionary null when the term rows are keyed by term
+     * @return false when rows of other regions were read, the result then can not be cached by this one
+     */
+    private boolean extractIds(byte[] mailboxId, MessageFields field, String term, TermDictionary dictionary,
+                               boolean termGrams, boolean legacy, UidSet uids) throws IOException {
+        boolean local = true;
+        for (QueryPlanner.KeyRange range : QueryPlanner.plan(mailboxId, field, term, legacy)) {
+            byte[] contains = range.getContains();
+            // the term rows keyed by id can only be found through the gram rows
+            if (contains != null && contains.length > 0
+                    && (dictionary != null || termGrams && contains.length >= TermGrams.GRAM_LENGTH))
+                local &= extractTermIds(mailboxId, field, contains, dictionary, uids);
+            else
+                extractIds(range, uids);
         }
+        return local;
     }
 
     @Override
-    public Set<Long> filterByMailbox(byte[] mailboxId) throws IOException {
-        Scan scan = new Scan();
-        scan.addFamily(COLUMN_FAMILY.name);
-        RowFilter filter = new RowFilter(CompareFilter.CompareOp.EQUAL,
-                new BinaryPrefixComparator(mailboxId));
-        scan.setFilter(filter);
-        return extractIds(scan);
+    public UidSet filterByMailbox(byte[] mailboxId) throws IOException {
+        UidSet uids = new UidSet();
+        Scan scan = regionScan(mailboxId, RowKeys.prefixSuccessor(mailboxId));
+        if (scan != null)
+            extractIds(scan, null, uids);
+        return withoutTombstones(mailboxId, uids);
+    }
+
+    @Override
+    public UidSet filterLive(byte[] mailboxId, UidSet uids) throws IOException {
+        UidSet live = new UidSet();
+        Scan scan = regionScan(mailboxId, RowKeys.prefixSuccessor(mailboxId));
+        if (scan != null)
+            extractIds(scan, null, live);
+        live.retainAll(uids);
+        return live;
     }
 
-    private Set<Long> extractIds(Scan scan) throws IOException {
-        Set<Long> uids = Sets.newLinkedHashSet();
-        ResultScanner scanner = getEnvironment().getTable(HBaseNames.INDEX_TABLE.name).getScanner(scan);
-        for (Result result : scanner)
-            for (byte[] qualifier : result.getFamilyMap(HBaseNames.COLUMN_FAMILY.name).keySet())
-                uids.add(Bytes.toLong(qualifier));
+    /**
+     * masks the messages which are deleted but still have cells waiting for the next compaction
+     */
+    private UidSet withoutTombstones(byte[] mailboxId, UidSet uids) throws IOException {
+        if (!uids.isEmpty())
+            uids.removeAll(Tombstones.load((RegionCoprocessorEnvironment) getEnvironment(), mailboxId));
         return uids;
     }
+
+    private void extractIds(QueryPlanner.KeyRange range, UidSet uids) throws IOException {
+        Scan scan = regionScan(range.getStart(), range.getStop());
+        if (scan != null)
+            extractIds(scan, range, uids);
+    }
+
+    /**
+     * reads the rows of the scan with the region's own scanner, cell by cell
+     *
+     * @param scan  a scan inside the region
+     * @param range the range the rows have to match, null to take all of them
+     * @param uids
+     * @throws IOException
+     */
+    private void extractIds(Scan scan, QueryPlanner.KeyRange range, UidSet uids) throws IOException {
+        RegionScanner scanner = getRegion().getScanner(scan);
+        try {
+            List<KeyValue> row = Lists.newArrayList();
+            boolean more;
+            do {
+                more = scanner.next(row);
+                if (!row.isEmpty()) {
+                    KeyValue first = row.get(0);
+                    byte[] buffer = first.getBuffer();
+                    // the gram rows hold terms in their qualifiers, not uids, tombstones are no messages and
+                    // the checkpoint holds a uid in its value
+                    if (!TermGrams.isGramRow(buffer, first.getRowOffset(), first.getRowLength())
+                            && !Tombstones.isTombstoneRow(buffer, first.getRowOffset(), first.getRowLength())
+                            && !RowKeys.isCheckpointRow(buffer, first.getRowOffset(), first.getRowLength())
+                            && (range == null || range.matches(buffer, first.getRowOffset(), first.getRowLength())))
+                        for (KeyValue kv : row)
+                            PostingBlocks.addUids(kv, uids);
+                    row.clear();
+                }
+            } while (more);
+        } finally {
+            scanner.close();
+        }
+    }
+
+    /**
+     * the rows of a mailbox can span several regions, each endpoint only reads the part of the range its
+     * region holds, the other parts are answered by the endpoints of the other regions
+     *
+     * @param start
+     * @param stop  exclusive, empty for the end of the table
+     * @return scan of the intersection of the range and the region, null when they do not intersect
+     */
+    private Scan regionScan(byte[] start, byte[] stop) {
+        HRegionInfo info = getRegion().getRegionInfo();
+        if (Bytes.compareTo(start, info.getStartKey()) < 0)
+            start = info.getStartKey();
+        byte[] regionStop = info.getEndKey();
+        if (regionStop.length > 0 && (stop.length == 0 || Bytes.compareTo(stop, regionStop) > 0))
+            stop = regionStop;
+        if (stop.length > 0 && Bytes.compareTo(start, stop) >= 0)
+            return null;
+        Scan scan = new Scan(start, stop);
+        scan.addFamily(COLUMN_FAMILY.name);
+        return scan;
+    }
+
+    /**
+     * @param start
+     * @param stop  exclusive
+     * @return whether the whole range is in the region
+     */
+    private boolean regionHolds(byte[] start, byte[] stop) {
+        HRegionInfo info = getRegion().getRegionInfo();
+        byte[] regionStop = info.getEndKey();
+        return Bytes.compareTo(start, info.getStartKey()) >= 0
+                && (regionStop.length == 0 || stop.length > 0 && Bytes.compareTo(stop, regionStop) <= 0);
+    }
+
+    private HRegion getRegion() {
+        return ((RegionCoprocessorEnvironment) getEnvironment()).getRegion();
+    }
+
+    /**
+     * reads the term rows of the terms which contain the value, the terms being found through the gram rows
+     *
+     * @return false when the gram rows of the field are not all in the region
+     */
+    private boolean extractTermIds(byte[] mailboxId, MessageFields field, byte[] value, TermDictionary dictionary,
+                                   UidSet uids) throws IOException {
+        // the gram rows are not worth reading when the region holds none of the term rows of the field
+        byte[] prefix = RowKeys.fieldPrefix(mailboxId, field);
+        if (regionScan(prefix, RowKeys.prefixSuccessor(prefix)) == null)
+            return true;
+        byte[] grams = TermGrams.row(mailboxId, field, new byte[0]);
+        boolean local = regionHolds(grams, RowKeys.prefixSuccessor(grams));
+        HTableInterface table = getEnvironment().getTable(HBaseNames.INDEX_TABLE.name);
+        try {
+            Set<byte[]> terms = candidateTerms(table, mailboxId, field, value);
+            if (terms.isEmpty())
+                return local;
+
+            List<byte[]> rows = Lists.newArrayList();
+            if (dictionary == null) {
+                for (byte[] term : terms)
+                    rows.add(RowKeys.row(mailboxId, field.id, term));
+            } else {
+                // all the candidates of the query are translated with one read of the dictionary
+                HTableInterface dictionaryTable = getEnvironment().getTable(TermDictionary.TERMS_TABLE);
+                try {
+                    for (Long id : dictionary.resolve(dictionaryTable, terms, false).values())
+                        rows.add(RowKeys.row(mailboxId, field.id, TermDictionary.idTerm(id)));
+                } finally {
+                    dictionaryTable.close();
+                }
+            }
+            // the term rows of the other regions are read by their own endpoint
+            HRegion region = getRegion();
+            for (byte[] row : rows) {
+                if (!HRegion.rowIsInRange(region.getRegionInfo(), row))
+                    continue;
+                Get get = new Get(row);
+                get.addFamily(COLUMN_FAMILY.name);
+                Result result = region.get(get, null);
+                if (!result.isEmpty())
+                    for (KeyValue kv : result.raw())
+                        PostingBlocks.addUids(kv, uids);
+            }
+            return local;
+        } finally {
+            table.close();
+        }
+    }
+
+    /**
+     * the terms listed in the rows of all the grams of the value are the candidates, a value shorter than
+     * a gram is looked for in the terms listed by the gram rows starting with it
+     *
+     * @return the terms of the field which contain the value
+     */
+    private Set<byte[]> candidateTerms(HTableInterface table, byte[] mailboxId, MessageFields field, byte[] value)
+            throws IOException {
+        Set<byte[]> candidates = null;
+        if (value.length >= TermGrams.GRAM_LENGTH) {
+            List<Get> gets = Lists.newArrayList();
+            for (byte[] gram : TermGrams.grams(value)) {
+                Get get = new Get(TermGrams.row(mailboxId, field, gram));
+                get.addFamily(COLUMN_FAMILY.name);
+                gets.add(get);
+            }
+            for (Result result : table.get(gets)) {
+                Set<byte[]> terms = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+                if (!result.isEmpty())
+                    terms.addAll(result.getFamilyMap(COLUMN_FAMILY.name).keySet());
+                if (candidates == null)
+                    candidates = terms;
+                else
+                    candidates.retainAll(terms);
+                if (candidates.isEmpty())
+                    return candidates;
+            }
+        } else {
+            candidates = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+            byte[] prefix = TermGrams.row(mailboxId, field, value);
+            Scan scan = new Scan(prefix, RowKeys.prefixSuccessor(prefix));
+            scan.addFamily(COLUMN_FAMILY.name);
+            scan.setFilter(new KeyOnlyFilter());
+            ResultScanner scanner = table.getScanner(scan);
+            try {
+                for (Result result : scanner)
+                    candidates.addAll(result.getFamilyMap(COLUMN_FAMILY.name).keySet());
+            } finally {
+                scanner.close();
+            }
+        }
+        // two grams in the right places do not make a substring, the candidates are verified
+        Iterator<byte[]> terms = candidates.iterator();
+        while (terms.hasNext()) {
+            byte[] term = terms.next();
+            if (!TermGrams.contains(term, 0, term.length, value))
+                terms.remove();
+        }
+        return candidates;
+    }
+
 }
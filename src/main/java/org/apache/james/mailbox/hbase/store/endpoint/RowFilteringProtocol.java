@@ -1,16 +1,27 @@
 package org.apache.james.mailbox.hbase.store.endpoint;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
 import org.apache.hadoop.hbase.ipc.CoprocessorProtocol;
-import org.apache.james.mailbox.hbase.store.MessageFields;
+import org.apache.james.mailbox.hbase.store.UidSet;
 
 import java.io.IOException;
-import java.util.Set;
 
 public interface RowFilteringProtocol extends CoprocessorProtocol{
 
-    public Set<Long> filterByQueries(byte[] mailboxId, Multimap<MessageFields, String> queries) throws IOException;
+    /**
+     * @param mailboxId
+     * @param criteria the queries of one criterion are alternatives, a message has to match every criterion
+     * @return for each criterion, in the same order, the sorted uids matching at least one of its queries
+     * @throws IOException
+     */
+    public CriteriaMatches filterByQueries(byte[] mailboxId, SearchCriteria criteria) throws IOException;
 
-    public Set<Long> filterByMailbox(byte[] mailboxId) throws IOException;
+    public UidSet filterByMailbox(byte[] mailboxId) throws IOException;
+
+    /**
+     * @param mailboxId
+     * @param uids
+     * @return those of the uids which still have cells in the rows of the mailbox, tombstones aside
+     * @throws IOException
+     */
+    public UidSet filterLive(byte[] mailboxId, UidSet uids) throws IOException;
 }
@@ -0,0 +1,132 @@
+package org.apache.james.mailbox.hbase.store.endpoint;
+
+import com.google.common.collect.Multimap;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.james.mailbox.hbase.store.MessageFields;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The criteria sent to {@link RowFilteringProtocol#filterByQueries}. A message has to match every criterion,
+ * the queries of one criterion are alternatives. On the wire: whether the client writes the
+ * {@link org.apache.james.mailbox.hbase.store.TermGrams} rows and whether it keys the term rows with the
+ * {@link org.apache.james.mailbox.hbase.store.TermDictionary} as two booleans, the number of criteria, then for
+ * each the number of queries and every query as its field id byte and its term as a vint prefixed UTF-8 string.
+ */
+public class SearchCriteria implements Writable {
+    private boolean termGrams;
+    private boolean termDictionary;
+    private MessageFields[][] fields;
+    private String[][] terms;
+
+    /**
+     * for the RPC layer
+     */
+    public SearchCriteria() {
+        this(0);
+    }
+
+    private SearchCriteria(int size) {
+        this.fields = new MessageFields[size][];
+        this.terms = new String[size][];
+    }
+
+    /**
+     * @param criteria
+     * @param termGrams true when the searched mailboxes have their gram rows written
+     * @param termDictionary true when their term rows are keyed by the ids of the terms
+     * @return searchCriteria
+     */
+    public static SearchCriteria of(List<Multimap<MessageFields, String>> criteria, boolean termGrams,
+                                    boolean termDictionary) {
+        SearchCriteria searchCriteria = new SearchCriteria(criteria.size());
+        searchCriteria.termGrams = termGrams;
+        searchCriteria.termDictionary = termDictionary;
+        for (int i = 0; i < criteria.size(); i++) {
+            Multimap<MessageFields, String> criterion = criteria.get(i);
+            searchCriteria.fields[i] = new MessageFields[criterion.size()];
+            searchCriteria.terms[i] = new String[criterion.size()];
+            int query = 0;
+            for (Map.Entry<MessageFields, String> entry : criterion.entries()) {
+                searchCriteria.fields[i][query] = entry.getKey();
+                searchCriteria.terms[i][query++] = entry.getValue();
+            }
+        }
+        return searchCriteria;
+    }
+
+    /**
+     * @return true when the substring searches can be answered from the gram rows
+     */
+    public boolean isTermGrams() {
+        return termGrams;
+    }
+
+    /**
+     * @return true when the term rows are keyed by the ids of the terms
+     */
+    public boolean isTermDictionary() {
+        return termDictionary;
+    }
+
+    /**
+     * @return the number of criteria
+     */
+    public int size() {
+        return fields.length;
+    }
+
+    /**
+     * @param criterion
+     * @return the number of queries of the criterion
+     */
+    public int queryCount(int criterion) {
+        return fields[criterion].length;
+    }
+
+    public MessageFields getField(int criterion, int query) {
+        return fields[criterion][query];
+    }
+
+    public String getTerm(int criterion, int query) {
+        return terms[criterion][query];
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeBoolean(termGrams);
+        out.writeBoolean(termDictionary);
+        WritableUtils.writeVInt(out, fields.length);
+        for (int i = 0; i < fields.length; i++) {
+            WritableUtils.writeVInt(out, fields[i].length);
+            for (int query = 0; query < fields[i].length; query++) {
+                out.writeByte(fields[i][query].id);
+                Text.writeString(out, terms[i][query]);
+            }
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        termGrams = in.readBoolean();
+        termDictionary = in.readBoolean();
+        int size = WritableUtils.readVInt(in);
+        fields = new MessageFields[size][];
+        terms = new String[size][];
+        for (int i = 0; i < size; i++) {
+            int queries = WritableUtils.readVInt(in);
+            fields[i] = new MessageFields[queries];
+            terms[i] = new String[queries];
+            for (int query = 0; query < queries; query++) {
+                fields[i][query] = MessageFields.byId(in.readByte());
+                terms[i][query] = Text.readString(in);
+            }
+        }
+    }
+}
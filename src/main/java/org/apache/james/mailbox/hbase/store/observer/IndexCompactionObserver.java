@@ -0,0 +1,245 @@
+package org.apache.james.mailbox.hbase.store.observer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.coprocessor.BaseRegionObserver;
+import org.apache.hadoop.hbase.coprocessor.ObserverContext;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.InternalScanner;
+import org.apache.hadoop.hbase.regionserver.Store;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.james.mailbox.hbase.store.PostingBlocks;
+import org.apache.james.mailbox.hbase.store.RowKeys;
+import org.apache.james.mailbox.hbase.store.TermGrams;
+import org.apache.james.mailbox.hbase.store.Tombstones;
+import org.apache.james.mailbox.hbase.store.UidSet;
+import org.apache.james.mailbox.hbase.store.endpoint.PostingCache;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rewrites the index store files while they are compacted:
+ * <ul>
+ * <li>a cell is dropped when its qualifier is a uid found in the tombstone row of the mailbox the row
+ * belongs to, tombstoned uids are also removed from the packed posting blocks</li>
+ * <li>when {@link PostingBlocks#ENABLED} is set and the compaction rewrites all the store files, runs of
+ * single uid cells of the term rows are packed into {@link PostingBlocks} cells</li>
+ * <li>when the compaction rewrites all the store files and the region holds the whole key range of a
+ * mailbox, the tombstones of the mailbox are dropped: none of its cells are left behind. The tombstones
+ * of the mailboxes spread over several regions are purged by
+ * {@link org.apache.james.mailbox.hbase.store.HBaseIndexStore#purgeTombstones}</li>
+ * </ul>
+ */
+public class IndexCompactionObserver extends BaseRegionObserver {
+    /**
+     * the stores whose next compaction has selected all their files
+     */
+    private final Set<Store> fullCompactions = Collections.newSetFromMap(new ConcurrentHashMap<Store, Boolean>());
+
+    @Override
+    public void postCompactSelection(ObserverContext<RegionCoprocessorEnvironment> e, Store store,
+                                     ImmutableList<StoreFile> selected) {
+        if (selected.size() == store.getStorefilesCount())
+            fullCompactions.add(store);
+        else
+            fullCompactions.remove(store);
+    }
+
+    @Override
+    public InternalScanner preCompact(ObserverContext<RegionCoprocessorEnvironment> e, Store store,
+                                      InternalScanner scanner) throws IOException {
+        return new CompactionScanner(e.getEnvironment(), scanner, fullCompactions.remove(store));
+    }
+
+    @Override
+    public void postCompact(ObserverContext<RegionCoprocessorEnvironment> e, Store store, StoreFile resultFile) {
+        // once the compacted file is in place, the cells it has dropped must not come back from the cache
+        PostingCache.invalidateRegion(e.getEnvironment());
+    }
+
+    /**
+     * the compaction reads the cells in order, so the tombstones are loaded once per mailbox and
+     * a block is complete once enough consecutive single cells of one row have been seen
+     */
+    private static class CompactionScanner implements InternalScanner {
+        private final RegionCoprocessorEnvironment environment;
+        private final InternalScanner delegate;
+        private final boolean packing;
+        private final int blockSize;
+        private final List<KeyValue> pending;
+        private final long[] pendingUids;
+        /**
+         * true when every store file is rewritten, the cells dropped are then gone from the whole region
+         */
+        private final boolean full;
+        private byte[] mailboxId = new byte[0];
+        private UidSet tombstones;
+
+        CompactionScanner(RegionCoprocessorEnvironment environment, InternalScanner delegate, boolean full) {
+            this.environment = environment;
+            this.delegate = delegate;
+            this.full = full;
+            Configuration configuration = environment.getConfiguration();
+            // every block of a row goes through a full compaction, the new ones can not take their qualifiers
+            this.packing = full && configuration.getBoolean(PostingBlocks.ENABLED, false);
+            this.blockSize = configuration.getInt(PostingBlocks.BLOCK_SIZE, PostingBlocks.DEFAULT_BLOCK_SIZE);
+            this.pending = Lists.newArrayListWithCapacity(blockSize);
+            this.pendingUids = new long[blockSize];
+        }
+
+        @Override
+        public boolean next(List<KeyValue> results) throws IOException {
+            return next(results, -1, null);
+        }
+
+        @Override
+        public boolean next(List<KeyValue> results, String metric) throws IOException {
+            return next(results, -1, metric);
+        }
+
+        @Override
+        public boolean next(List<KeyValue> results, int limit) throws IOException {
+            return next(results, limit, null);
+        }
+
+        @Override
+        public boolean next(List<KeyValue> results, int limit, String metric) throws IOException {
+            List<KeyValue> batch = Lists.newArrayList();
+            boolean more;
+            do {
+                batch.clear();
+                more = metric == null ? delegate.next(batch, limit) : delegate.next(batch, limit, metric);
+                for (KeyValue kv : batch)
+                    rewrite(kv, results);
+                if (!more)
+                    emitPending(results);
+                // cells held back for a block which is not complete yet are kept for the next call
+            } while (more && results.isEmpty());
+            return more;
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        private void rewrite(KeyValue kv, List<KeyValue> results) throws IOException {
+            byte[] buffer = kv.getBuffer();
+            int rowOffset = kv.getRowOffset();
+            int rowLength = kv.getRowLength();
+            if (!pending.isEmpty() && !Bytes.equals(buffer, rowOffset, rowLength,
+                    pending.get(0).getBuffer(), pending.get(0).getRowOffset(), pending.get(0).getRowLength()))
+                emitPending(results);
+
+            if (Tombstones.isTombstoneRow(buffer, rowOffset, rowLength)) {
+                if (full && kv.getType() == KeyValue.Type.Put.getCode() && holdsMailbox(buffer, rowOffset)) {
+                    // the rows of the mailbox which follow the tombstone row are still masked with the loaded set
+                    loadTombstones(buffer, rowOffset);
+                    if (tombstones.contains(Bytes.toLong(buffer, kv.getQualifierOffset())))
+                        return;
+                }
+                results.add(kv);
+                return;
+            }
+            // the qualifiers of the gram rows are terms, not uids, the checkpoint row has none either
+            if (rowLength < RowKeys.FIELD_PREFIX_LENGTH || TermGrams.isGramRow(buffer, rowOffset, rowLength)
+                    || RowKeys.isCheckpointRow(buffer, rowOffset, rowLength)) {
+                results.add(kv);
+                return;
+            }
+            loadTombstones(buffer, rowOffset);
+            int qualifierLength = kv.getQualifierLength();
+            if (qualifierLength == Bytes.SIZEOF_LONG) {
+                if (tombstones.contains(Bytes.toLong(buffer, kv.getQualifierOffset())))
+                    return;
+                if (packing && kv.getType() == KeyValue.Type.Put.getCode()
+                        && PostingBlocks.isPackable(buffer, rowOffset, rowLength)) {
+                    pending.add(kv);
+                    if (pending.size() == blockSize)
+                        emitBlock(results);
+                    return;
+                }
+            } else if (PostingBlocks.isBlock(qualifierLength) && !tombstones.isEmpty()) {
+                kv = purgeBlock(kv);
+                if (kv == null)
+                    return;
+            }
+            // anything else, delete markers included, keeps its place after the pending singles
+            emitPending(results);
+            results.add(kv);
+        }
+
+        private void loadTombstones(byte[] buffer, int rowOffset) throws IOException {
+            if (Bytes.compareTo(mailboxId, 0, mailboxId.length, buffer, rowOffset, RowKeys.MAILBOX_ID_LENGTH) != 0) {
+                mailboxId = Arrays.copyOfRange(buffer, rowOffset, rowOffset + RowKeys.MAILBOX_ID_LENGTH);
+                tombstones = Tombstones.load(environment, mailboxId);
+            }
+        }
+
+        /**
+         * the tombstones are written after the cells they mask, so once they are in a store file those cells
+         * are in the store files too, and a full compaction has dropped all of them when the region holds
+         * every row of the mailbox
+         */
+        private boolean holdsMailbox(byte[] buffer, int rowOffset) {
+            HRegionInfo info = environment.getRegion().getRegionInfo();
+            byte[] startKey = info.getStartKey();
+            byte[] endKey = info.getEndKey();
+            if (Bytes.compareTo(startKey, 0, startKey.length, buffer, rowOffset, RowKeys.MAILBOX_ID_LENGTH) > 0)
+                return false;
+            if (endKey.length == 0)
+                return true;
+            byte[] successor = RowKeys.prefixSuccessor(Arrays.copyOfRange(buffer, rowOffset, rowOffset + RowKeys.MAILBOX_ID_LENGTH));
+            return successor.length > 0 && Bytes.compareTo(successor, endKey) <= 0;
+        }
+
+        /**
+         * the row ended before the block was full, the cells stay single
+         */
+        private void emitPending(List<KeyValue> results) {
+            results.addAll(pending);
+            pending.clear();
+        }
+
+        private void emitBlock(List<KeyValue> results) throws IOException {
+            KeyValue first = pending.get(0);
+            long timestamp = first.getTimestamp();
+            for (int i = 0; i < pending.size(); i++) {
+                KeyValue kv = pending.get(i);
+                pendingUids[i] = Bytes.toLong(kv.getBuffer(), kv.getQualifierOffset());
+                timestamp = Math.max(timestamp, kv.getTimestamp());
+            }
+            byte[] qualifier = PostingBlocks.blockQualifier(pendingUids[0], pendingUids[pending.size() - 1]);
+            results.add(new KeyValue(first.getRow(), first.getFamily(), qualifier, timestamp, KeyValue.Type.Put,
+                    PostingBlocks.encode(pendingUids, pending.size())));
+            pending.clear();
+        }
+
+        /**
+         * @return the block without its tombstoned uids, the same cell when none is, null when all are
+         */
+        private KeyValue purgeBlock(KeyValue kv) throws IOException {
+            long[] uids = PostingBlocks.decode(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength());
+            int live = 0;
+            for (long uid : uids)
+                if (!tombstones.contains(uid))
+                    uids[live++] = uid;
+            if (live == uids.length)
+                return kv;
+            if (live == 0)
+                return null;
+            // the qualifier stays the same so the cell keeps its position in the row
+            return new KeyValue(kv.getRow(), kv.getFamily(), kv.getQualifier(), kv.getTimestamp(),
+                    KeyValue.Type.Put, PostingBlocks.encode(uids, live));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.apache.james.mailbox.hbase.store.observer;
+
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.coprocessor.BaseRegionObserver;
+import org.apache.hadoop.hbase.coprocessor.ObserverContext;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
+import org.apache.james.mailbox.hbase.store.endpoint.PostingCache;
+
+import java.io.IOException;
+
+/**
+ * Invalidates the {@link PostingCache} of the region when rows are written or deleted, the hooks run once
+ * the mutation is visible to the readers. Has to be loaded whenever {@link PostingCache#SIZE} is set.
+ */
+public class PostingCacheObserver extends BaseRegionObserver {
+
+    private PostingCache postingCache;
+
+    @Override
+    public void start(CoprocessorEnvironment e) throws IOException {
+        postingCache = PostingCache.forRegion((RegionCoprocessorEnvironment) e);
+    }
+
+    @Override
+    public void stop(CoprocessorEnvironment e) throws IOException {
+        if (postingCache != null)
+            PostingCache.release((RegionCoprocessorEnvironment) e);
+    }
+
+    @Override
+    public void postPut(ObserverContext<RegionCoprocessorEnvironment> e, Put put, WALEdit edit,
+                        boolean writeToWAL) throws IOException {
+        if (postingCache != null)
+            postingCache.invalidate(put.getRow(), 0, put.getRow().length);
+    }
+
+    @Override
+    public void postDelete(ObserverContext<RegionCoprocessorEnvironment> e, Delete delete, WALEdit edit,
+                           boolean writeToWAL) throws IOException {
+        if (postingCache != null)
+            postingCache.invalidate(delete.getRow(), 0, delete.getRow().length);
+    }
+}
@@ -0,0 +1,63 @@
+package org.apache.james.mailbox.hbase.index;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class CappedInputStreamTest {
+    private static InputStream bytes(int count) {
+        byte[] data = new byte[count];
+        for (int i = 0; i < count; i++)
+            data[i] = (byte) i;
+        return new ByteArrayInputStream(data);
+    }
+
+    @Test
+    public void testStreamEndsAtTheLimit() throws Exception {
+        CappedInputStream in = new CappedInputStream(bytes(100), 10);
+        byte[] buffer = new byte[64];
+        assertEquals(10, in.read(buffer, 0, buffer.length));
+        assertEquals(9, buffer[9]);
+        assertEquals(-1, in.read(buffer, 0, buffer.length));
+        assertEquals(-1, in.read());
+        assertEquals(0, in.available());
+        assertEquals(10, in.getCount());
+    }
+
+    @Test
+    public void testSingleBytesAndSkipsAreCounted() throws Exception {
+        CappedInputStream in = new CappedInputStream(bytes(100), 5);
+        assertEquals(0, in.read());
+        assertEquals(3, in.skip(3));
+        assertEquals(4, in.read());
+        assertEquals(0, in.skip(10));
+        assertEquals(-1, in.read());
+        assertEquals(5, in.getCount());
+    }
+
+    @Test
+    public void testShorterStreamIsReadWhole() throws Exception {
+        CappedInputStream in = new CappedInputStream(bytes(3), 10);
+        assertEquals(3, in.read(new byte[8], 0, 8));
+        assertEquals(-1, in.read());
+        assertEquals(3, in.getCount());
+    }
+
+    @Test
+    public void testNegativeLimitIsNoLimit() throws Exception {
+        CappedInputStream in = new CappedInputStream(bytes(100), -1);
+        assertEquals(100, in.read(new byte[128], 0, 128));
+        assertEquals(100, in.getCount());
+        assertFalse(in.markSupported());
+    }
+
+    @Test
+    public void testZeroLimitIsEmpty() throws Exception {
+        CappedInputStream in = new CappedInputStream(bytes(100), 0);
+        assertEquals(-1, in.read());
+        assertEquals(0, in.getCount());
+    }
+}
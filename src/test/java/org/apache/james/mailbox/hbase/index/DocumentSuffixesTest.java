@@ -0,0 +1,51 @@
+package org.apache.james.mailbox.hbase.index;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.james.mailbox.hbase.store.DocumentTerms;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DocumentSuffixesTest {
+
+    @Test
+    public void testRepeatedSuffixesAddTheirCounts() throws Exception {
+        DocumentSuffixes document = new DocumentSuffixes();
+        assertEquals(0, document.add(Bytes.toBytes("custard"), 2));
+        assertEquals(0, document.add(Bytes.toBytes("rhubarb"), 1));
+        assertEquals(2, document.add(Bytes.toBytes("custard"), 3));
+        assertEquals(5, document.add(Bytes.toBytes("custard"), 1));
+        assertEquals(2, document.size());
+        assertTrue(document.contains(Bytes.toBytes("rhubarb")));
+        assertFalse(document.contains(Bytes.toBytes("custards")));
+    }
+
+    @Test
+    public void testValueIsTheForwardIndexLayout() throws Exception {
+        DocumentSuffixes document = new DocumentSuffixes();
+        // enough suffixes to grow the table a few times
+        for (int i = 0; i < 1000; i++)
+            document.add(Bytes.toBytes("term" + i), 1);
+        for (int i = 0; i < 1000; i += 7)
+            assertEquals(1, document.add(Bytes.toBytes("term" + i), 1));
+        List<byte[]> suffixes = DocumentTerms.decode(document.encode());
+        assertEquals(1000, suffixes.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals("term" + i, Bytes.toString(suffixes.get(i)));
+
+        List<byte[]> last = document.suffixes(998);
+        assertEquals(2, last.size());
+        assertEquals("term998", Bytes.toString(last.get(0)));
+        assertEquals("term999", Bytes.toString(last.get(1)));
+    }
+
+    @Test
+    public void testEmptyDocument() throws Exception {
+        DocumentSuffixes document = new DocumentSuffixes();
+        assertEquals(0, document.encode().length);
+        assertTrue(document.suffixes(0).isEmpty());
+        assertFalse(document.contains(new byte[0]));
+    }
+}
@@ -1,24 +1,54 @@
 package org.apache.james.mailbox.hbase.index;
 
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.regionserver.HRegion;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.james.mailbox.hbase.store.DocumentTerms;
+import org.apache.james.mailbox.hbase.store.FlagPostings;
 import org.apache.james.mailbox.hbase.store.HBaseIndexStore;
 import org.apache.james.mailbox.hbase.store.MessageBuilder;
 import org.apache.james.mailbox.hbase.store.MessageFields;
+import org.apache.james.mailbox.hbase.store.NumericTerms;
+import org.apache.james.mailbox.hbase.store.PostingBlocks;
+import org.apache.james.mailbox.hbase.store.RowKeys;
 import org.apache.james.mailbox.hbase.store.SimpleMailboxMembership;
+import org.apache.james.mailbox.hbase.store.TermDictionary;
+import org.apache.james.mailbox.hbase.store.TermFrequency;
+import org.apache.james.mailbox.hbase.store.TermGrams;
+import org.apache.james.mailbox.hbase.store.Tombstones;
+import org.apache.james.mailbox.exception.MailboxException;
 import org.apache.james.mailbox.model.MailboxACL;
+import org.apache.james.mailbox.model.MessageRange;
 import org.apache.james.mailbox.model.SearchQuery;
 import org.apache.james.mailbox.model.SimpleMailboxACL;
+import org.apache.james.mailbox.store.mail.MessageMapper;
+import org.apache.james.mailbox.store.mail.MessageMapperFactory;
 import org.apache.james.mailbox.store.mail.model.Mailbox;
+import org.apache.james.mailbox.store.mail.model.Message;
 import org.junit.*;
 
 import javax.mail.Flags;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.nio.charset.Charset;
 import java.util.*;
 
 import static org.apache.james.mailbox.hbase.index.MessageSearchIndexListener.*;
 import static org.apache.james.mailbox.hbase.store.HBaseNames.COLUMN_FAMILY;
+import static org.apache.james.mailbox.hbase.store.HBaseNames.EMPTY_COLUMN_VALUE;
+import static org.apache.james.mailbox.hbase.store.HBaseNames.INDEX_TABLE;
 import static org.junit.Assert.*;
 
 public class MessageSearchIndexListenerTest {
@@ -105,6 +135,40 @@ public class MessageSearchIndexListenerTest {
         HTU.shutdownMiniCluster();
     }
 
+    /**
+     * flushes and major compacts every region of the index table, synchronously
+     */
+    private static void compactIndex() throws IOException {
+        for (HRegion region : HTU.getMiniHBaseCluster().getRegions(INDEX_TABLE.name)) {
+            region.flushcache();
+            region.compactStores(true);
+        }
+    }
+
+    /**
+     * as {@link #compactIndex()}, with the region servers packing the posting blocks for this compaction only
+     */
+    private static void packIndex(int blockSize) throws IOException {
+        List<HRegion> regions = HTU.getMiniHBaseCluster().getRegions(INDEX_TABLE.name);
+        for (HRegion region : regions) {
+            region.getConf().setBoolean(PostingBlocks.ENABLED, true);
+            region.getConf().setInt(PostingBlocks.BLOCK_SIZE, blockSize);
+        }
+        try {
+            compactIndex();
+        } finally {
+            for (HRegion region : regions) {
+                region.getConf().setBoolean(PostingBlocks.ENABLED, false);
+                region.getConf().setInt(PostingBlocks.BLOCK_SIZE, PostingBlocks.DEFAULT_BLOCK_SIZE);
+            }
+        }
+    }
+
+    private static SimpleMailboxMembership message(UUID mailboxId, long uid, String body) {
+        return new SimpleMailboxMembership(mailboxId, uid, 0, new Date(), 20, new Flags(), body.getBytes(),
+                new HashMap<String, String>());
+    }
+
     @Test
     public void testUUIDTransform() throws Exception{
         UUID uuid = new UUID(11,22);
@@ -122,6 +186,624 @@ public class MessageSearchIndexListenerTest {
         }
     }
 
+    @Test
+    public void testForwardIndexListsTermRows() throws Exception {
+        List<byte[]> document = store.retrieveDocument(uuidToBytes(mailbox3.getMailboxId()), mailId);
+        assertNotNull(document);
+        boolean found = false;
+        for (byte[] suffix : document)
+            found |= Bytes.equals(suffix, Bytes.add(new byte[]{MessageFields.BODY_FIELD.id}, Bytes.toBytes(CUSTARD)));
+        assertTrue(found);
+    }
+
+    @Test
+    public void testDeleteRemovesMailFromIndex() throws Exception {
+        index.delete(null, mailbox3, MessageRange.one(mailId));
+        assertFalse(store.retrieveMails(uuidToBytes(mailbox3.getMailboxId()), mailId).iterator().hasNext());
+        assertNull(store.retrieveDocument(uuidToBytes(mailbox3.getMailboxId()), mailId));
+
+        SearchQuery query = new SearchQuery();
+        query.andCriteria(SearchQuery.bodyContains(CUSTARD));
+        assertFalse(index.search(null, mailbox3, query).hasNext());
+    }
+
+    @Test
+    public void testLazyDeletesAreMaskedThenPurgedByTheCompaction() throws Exception {
+        Configuration configuration = new Configuration(HTU.getConfiguration());
+        configuration.setBoolean(HBaseIndexStore.LAZY_DELETES, true);
+        HBaseIndexStore lazyStore = HBaseIndexStore.open(configuration);
+        try {
+            MessageSearchIndexListener lazyIndex = new MessageSearchIndexListener(null, lazyStore);
+            SimpleMailbox lazy = new SimpleMailbox(new UUID(5, 0));
+            byte[] mailboxId = uuidToBytes(lazy.getMailboxId());
+            lazyIndex.add(null, lazy, message(lazy.getMailboxId(), 1, "Lazy " + CUSTARD));
+            lazyIndex.add(null, lazy, message(lazy.getMailboxId(), 2, "Lazy " + CUSTARD));
+            lazyIndex.delete(null, lazy, MessageRange.one(1));
+
+            SearchQuery query = new SearchQuery();
+            query.andCriteria(SearchQuery.bodyContains(CUSTARD));
+            Iterator<Long> result = lazyIndex.search(null, lazy, query);
+            assertEquals(2L, result.next().longValue());
+            assertFalse(result.hasNext());
+            // only masked until the compaction, the tombstone is still needed
+            assertTrue(lazyStore.retrieveMails(mailboxId, 1).iterator().hasNext());
+            assertEquals(0, lazyStore.purgeTombstones(mailboxId));
+
+            compactIndex();
+            assertFalse(lazyStore.retrieveMails(mailboxId, 1).iterator().hasNext());
+            assertTrue(lazyStore.retrieveMails(mailboxId, 2).iterator().hasNext());
+            HTable table = new HTable(configuration, INDEX_TABLE.name);
+            try {
+                assertTrue(table.get(new Get(Tombstones.row(mailboxId))).isEmpty());
+            } finally {
+                table.close();
+            }
+            result = lazyIndex.search(null, lazy, query);
+            assertEquals(2L, result.next().longValue());
+            assertFalse(result.hasNext());
+
+            // a tombstone left without cells, as in a mailbox spread over several regions
+            lazyStore.markDeleted(mailboxId, Collections.singleton(1L));
+            assertEquals(1, lazyStore.purgeTombstones(mailboxId));
+        } finally {
+            lazyStore.close();
+        }
+    }
+
+    @Test
+    public void testBulkIndexerIndexesTheWholeMailbox() throws Exception {
+        SimpleMailbox bulk = new SimpleMailbox(new UUID(4, 0));
+        List<Message<UUID>> messages = new ArrayList<Message<UUID>>();
+        for (long uid = 1; uid <= 5; uid++)
+            messages.add(new SimpleMailboxMembership(bulk.getMailboxId(), uid, 0, new Date(), 20, new Flags(),
+                    ("Bulk body " + (uid % 2 == 0 ? CUSTARD : RHUBARD)).getBytes(), new HashMap<String, String>()));
+        final List<Long> checkpoints = new ArrayList<Long>();
+        BulkIndexer indexer = new BulkIndexer(index, store);
+        try {
+            assertEquals(5, indexer.index(bulk, messages.iterator(), new BulkIndexer.Progress() {
+                @Override
+                public void indexed(Mailbox<UUID> mailbox, long lastUid, long count) {
+                    checkpoints.add(lastUid);
+                }
+            }));
+        } finally {
+            indexer.close();
+        }
+        assertEquals(Long.valueOf(5), checkpoints.get(checkpoints.size() - 1));
+        assertEquals(5, store.bulkCheckpoint(uuidToBytes(bulk.getMailboxId())));
+
+        SearchQuery query = new SearchQuery();
+        query.andCriteria(SearchQuery.bodyContains(CUSTARD));
+        Iterator<Long> result = index.search(null, bulk, query);
+        assertEquals(2L, result.next().longValue());
+        assertEquals(4L, result.next().longValue());
+        assertFalse(result.hasNext());
+    }
+
+    @Test
+    public void testLegacyFlagsRowIsSearchedThenMigrated() throws Exception {
+        SimpleMailbox legacy = new SimpleMailbox(new UUID(6, 0));
+        byte[] mailboxId = uuidToBytes(legacy.getMailboxId());
+        HTable table = new HTable(HTU.getConfiguration(), INDEX_TABLE.name);
+        try {
+            // as the flags were written before the flags rows were chunked: names back to back, no posting rows
+            Put put = new Put(FlagPostings.legacyFlagsRow(mailboxId));
+            put.add(COLUMN_FAMILY.name, Bytes.toBytes(1L), Bytes.toBytes("\\ANSWERED\\FLAG"));
+            put.add(COLUMN_FAMILY.name, Bytes.toBytes(2L), Bytes.toBytes(""));
+            table.put(put);
+
+            SearchQuery seen = new SearchQuery();
+            seen.andCriteria(SearchQuery.flagIsSet(Flags.Flag.SEEN));
+            SearchQuery unanswered = new SearchQuery();
+            unanswered.andCriteria(SearchQuery.flagIsUnSet(Flags.Flag.ANSWERED));
+            Iterator<Long> result = index.search(null, legacy, seen);
+            assertEquals(1L, result.next().longValue());
+            assertFalse(result.hasNext());
+            result = index.search(null, legacy, unanswered);
+            assertEquals(2L, result.next().longValue());
+            assertFalse(result.hasNext());
+
+            assertTrue(store.migrateFlags() >= 2);
+            assertTrue(table.get(new Get(FlagPostings.legacyFlagsRow(mailboxId))).isEmpty());
+            assertEquals(new HashSet<String>(Arrays.asList("\\ANSWERED", "\\SEEN")), store.retrieveFlags(mailboxId, 1));
+            result = index.search(null, legacy, seen);
+            assertEquals(1L, result.next().longValue());
+            assertFalse(result.hasNext());
+            result = index.search(null, legacy, unanswered);
+            assertEquals(2L, result.next().longValue());
+            assertFalse(result.hasNext());
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    public void testUpdateReplacesTheLegacyFlags() throws Exception {
+        SimpleMailbox legacy = new SimpleMailbox(new UUID(8, 0));
+        byte[] mailboxId = uuidToBytes(legacy.getMailboxId());
+        HTable table = new HTable(HTU.getConfiguration(), INDEX_TABLE.name);
+        try {
+            Put put = new Put(FlagPostings.legacyFlagsRow(mailboxId));
+            put.add(COLUMN_FAMILY.name, Bytes.toBytes(3L), Bytes.toBytes("\\ANSWERED\\FLAG"));
+            table.put(put);
+            assertEquals(new HashSet<String>(Arrays.asList("\\ANSWERED", "\\SEEN")), store.retrieveFlags(mailboxId, 3));
+
+            index.update(null, legacy, MessageRange.one(3), new Flags(Flags.Flag.SEEN));
+            assertTrue(table.get(new Get(FlagPostings.legacyFlagsRow(mailboxId))).isEmpty());
+            assertEquals(Collections.singleton("\\SEEN"), store.retrieveFlags(mailboxId, 3));
+        } finally {
+            table.close();
+        }
+        SearchQuery query = new SearchQuery();
+        query.andCriteria(SearchQuery.flagIsSet(Flags.Flag.ANSWERED));
+        assertFalse(index.search(null, legacy, query).hasNext());
+        query = new SearchQuery();
+        query.andCriteria(SearchQuery.flagIsSet(Flags.Flag.SEEN));
+        Iterator<Long> result = index.search(null, legacy, query);
+        assertEquals(3L, result.next().longValue());
+        assertFalse(result.hasNext());
+    }
+
+    @Test
+    public void testCompactionPacksThePostingsIntoBlocks() throws Exception {
+        Configuration configuration = new Configuration(HTU.getConfiguration());
+        // the deletes have to write tombstones to mask the packed uids
+        configuration.setBoolean(PostingBlocks.ENABLED, true);
+        HBaseIndexStore packedStore = HBaseIndexStore.open(configuration);
+        HTable table = new HTable(configuration, INDEX_TABLE.name);
+        try {
+            MessageSearchIndexListener packedIndex = new MessageSearchIndexListener(null, packedStore);
+            SimpleMailbox packed = new SimpleMailbox(new UUID(9, 0));
+            byte[] row = RowKeys.row(uuidToBytes(packed.getMailboxId()), MessageFields.BODY_FIELD.id, Bytes.toBytes(CUSTARD));
+            for (long uid = 1; uid <= 5; uid++)
+                packedIndex.add(null, packed, message(packed.getMailboxId(), uid, "Packed " + CUSTARD));
+            packIndex(2);
+            assertEquals(2, countBlocks(table.get(new Get(row))));
+
+            // uids indexed again next to the blocks and new uids are packed by the next compaction
+            packedIndex.add(null, packed, message(packed.getMailboxId(), 1, "Packed " + CUSTARD));
+            packedIndex.add(null, packed, message(packed.getMailboxId(), 3, "Packed " + CUSTARD));
+            for (long uid = 6; uid <= 7; uid++)
+                packedIndex.add(null, packed, message(packed.getMailboxId(), uid, "Packed " + CUSTARD));
+            packIndex(2);
+            packedIndex.delete(null, packed, MessageRange.one(4));
+            SearchQuery query = new SearchQuery();
+            query.andCriteria(SearchQuery.bodyContains(CUSTARD));
+            assertEquals(Arrays.asList(1L, 2L, 3L, 5L, 6L, 7L), Lists.newArrayList(packedIndex.search(null, packed, query)));
+
+            packIndex(2);
+            assertEquals(Arrays.asList(1L, 2L, 3L, 5L, 6L, 7L), Lists.newArrayList(packedIndex.search(null, packed, query)));
+        } finally {
+            table.close();
+            packedStore.close();
+        }
+    }
+
+    private static int countBlocks(Result result) {
+        int blocks = 0;
+        for (byte[] qualifier : result.getFamilyMap(COLUMN_FAMILY.name).keySet())
+            if (PostingBlocks.isBlock(qualifier.length))
+                blocks++;
+        return blocks;
+    }
+
+    @Test
+    public void testPurgeDropsTheTermsOfDeletedMailsFromTheGramRows() throws Exception {
+        Configuration configuration = new Configuration(HTU.getConfiguration());
+        configuration.setBoolean(TermGrams.ENABLED, true);
+        configuration.setLong(TermGrams.PURGE_GRACE, 0);
+        HBaseIndexStore gramStore = HBaseIndexStore.open(configuration);
+        HTable table = new HTable(configuration, INDEX_TABLE.name);
+        try {
+            MessageSearchIndexListener gramIndex = new MessageSearchIndexListener(null, gramStore);
+            SimpleMailbox grams = new SimpleMailbox(new UUID(10, 0));
+            byte[] mailboxId = uuidToBytes(grams.getMailboxId());
+            gramIndex.add(null, grams, message(grams.getMailboxId(), 1, "Purged ZANZIBAR"));
+            gramIndex.add(null, grams, message(grams.getMailboxId(), 2, "Purged RHUBARB"));
+            gramIndex.delete(null, grams, MessageRange.one(1));
+            Thread.sleep(1);
+
+            byte[] row = TermGrams.row(mailboxId, MessageFields.BODY_FIELD, Bytes.toBytes("ZAN"));
+            assertFalse(table.get(new Get(row)).isEmpty());
+            assertTrue(gramStore.purgeGrams(mailboxId) > 0);
+            assertTrue(table.get(new Get(row)).isEmpty());
+            // the terms of the remaining mail stay listed
+            assertEquals(0, gramStore.purgeGrams(mailboxId));
+            SearchQuery query = new SearchQuery();
+            query.andCriteria(SearchQuery.bodyContains("URGE"));
+            Iterator<Long> result = gramIndex.search(null, grams, query);
+            assertEquals(2L, result.next().longValue());
+            assertFalse(result.hasNext());
+            query = new SearchQuery();
+            query.andCriteria(SearchQuery.bodyContains("ANZIB"));
+            assertFalse(gramIndex.search(null, grams, query).hasNext());
+        } finally {
+            table.close();
+            gramStore.close();
+        }
+    }
+
+    @Test
+    public void testLegacyNumericRowsAreSearchedThenMigrated() throws Exception {
+        SimpleMailbox legacy = new SimpleMailbox(new UUID(11, 0));
+        byte[] mailboxId = uuidToBytes(legacy.getMailboxId());
+        byte[] qualifier = Bytes.toBytes(1L);
+        byte[] uidSuffix = RowKeys.suffix(MessageFields.UID_FIELD.id, Bytes.toBytes(NumericTerms.legacyTerm(1)));
+        byte[] bodySuffix = RowKeys.suffix(MessageFields.BODY_FIELD.id, Bytes.toBytes("VINTAGE"));
+        HTable table = new HTable(HTU.getConfiguration(), INDEX_TABLE.name);
+        try {
+            // mail 1 as indexed with the 19 digits numeric terms, mail 2 with the current ones
+            for (byte[] suffix : Arrays.asList(uidSuffix, bodySuffix)) {
+                Put put = new Put(RowKeys.row(mailboxId, suffix));
+                put.add(COLUMN_FAMILY.name, qualifier, new byte[0]);
+                table.put(put);
+            }
+            Put put = new Put(RowKeys.documentRow(mailboxId, 1));
+            put.add(COLUMN_FAMILY.name, qualifier, DocumentTerms.encode(Arrays.asList(uidSuffix, bodySuffix)));
+            table.put(put);
+            index.add(null, legacy, message(legacy.getMailboxId(), 2, "Modern"));
+
+            // both formats are read while the rows are migrated
+            SearchQuery query = new SearchQuery();
+            query.andCriteria(SearchQuery.uid(new SearchQuery.NumericRange[]{new SearchQuery.NumericRange(1, 2)}));
+            assertEquals(Arrays.asList(1L, 2L), Lists.newArrayList(index.search(null, legacy, query)));
+
+            assertTrue(store.migrateNumericTerms() >= 1);
+            assertTrue(table.get(new Get(RowKeys.row(mailboxId, uidSuffix))).isEmpty());
+            byte[] migrated = RowKeys.suffix(MessageFields.UID_FIELD.id, NumericTerms.encode(1));
+            assertFalse(table.get(new Get(RowKeys.row(mailboxId, migrated))).isEmpty());
+            List<byte[]> document = store.retrieveDocument(mailboxId, 1);
+            assertEquals(2, document.size());
+            assertTrue(Bytes.equals(migrated, document.get(0)) || Bytes.equals(migrated, document.get(1)));
+            assertEquals(Arrays.asList(1L, 2L), Lists.newArrayList(index.search(null, legacy, query)));
+
+            // deleting the migrated mail finds its rows through the rewritten forward row
+            index.delete(null, legacy, MessageRange.one(1));
+            assertTrue(table.get(new Get(RowKeys.row(mailboxId, migrated))).isEmpty());
+            assertEquals(Collections.singletonList(2L), Lists.newArrayList(index.search(null, legacy, query)));
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    public void testTermRowsKeyedByDictionaryIds() throws Exception {
+        Configuration configuration = new Configuration(HTU.getConfiguration());
+        configuration.setBoolean(TermDictionary.ENABLED, true);
+        HBaseIndexStore dictionaryStore = HBaseIndexStore.open(configuration);
+        try {
+            MessageSearchIndexListener dictionaryIndex = new MessageSearchIndexListener(null, dictionaryStore);
+            SimpleMailbox dictionary = new SimpleMailbox(new UUID(12, 0));
+            byte[] mailboxId = uuidToBytes(dictionary.getMailboxId());
+            dictionaryIndex.add(null, dictionary, message(dictionary.getMailboxId(), 1, "Dictionary " + CUSTARD));
+            dictionaryIndex.add(null, dictionary, message(dictionary.getMailboxId(), 2, "Dictionary RHUBARB"));
+
+            byte[] custard = RowKeys.suffix(MessageFields.BODY_FIELD.id, Bytes.toBytes(CUSTARD));
+            for (byte[] suffix : dictionaryStore.retrieveDocument(mailboxId, 1))
+                assertFalse(Bytes.equals(custard, suffix));
+            assertEquals(Arrays.asList(1L, 2L), search(dictionaryIndex, dictionary, "DICTIONARY"));
+            assertEquals(Collections.singletonList(1L), search(dictionaryIndex, dictionary, "STAR"));
+            // shorter than a gram
+            assertEquals(Collections.singletonList(2L), search(dictionaryIndex, dictionary, "UB"));
+
+            dictionaryIndex.delete(null, dictionary, MessageRange.one(1));
+            assertEquals(Collections.singletonList(2L), search(dictionaryIndex, dictionary, "DICTIONARY"));
+            assertTrue(search(dictionaryIndex, dictionary, CUSTARD).isEmpty());
+
+            // the ids of the new terms of a batch are reserved together
+            Map<byte[], Long> ids = dictionaryStore.termIds(Arrays.asList(Bytes.toBytes("QUOKKA"), Bytes.toBytes("ZEPHYR")));
+            assertEquals(2, ids.size());
+            assertEquals(1, Math.abs(ids.get(Bytes.toBytes("QUOKKA")) - ids.get(Bytes.toBytes("ZEPHYR"))));
+            assertEquals(ids, dictionaryStore.termIds(Arrays.asList(Bytes.toBytes("QUOKKA"), Bytes.toBytes("ZEPHYR"))));
+        } finally {
+            dictionaryStore.close();
+        }
+    }
+
+    private static List<Long> search(MessageSearchIndexListener index, Mailbox<UUID> mailbox, String body) throws Exception {
+        SearchQuery query = new SearchQuery();
+        query.andCriteria(SearchQuery.bodyContains(body));
+        return Lists.newArrayList(index.search(null, mailbox, query));
+    }
+
+    @Test
+    public void testCachedSearchesFollowTheChangesOfTheMailbox() throws Exception {
+        Configuration configuration = new Configuration(HTU.getConfiguration());
+        configuration.setInt(HBaseIndexStore.SEARCH_CACHE_SIZE, 10);
+        HBaseIndexStore cachedStore = HBaseIndexStore.open(configuration);
+        try {
+            MessageSearchIndexListener cachedIndex = new MessageSearchIndexListener(null, cachedStore);
+            SearchResultCache cache = cachedIndex.getSearchCache();
+            assertNotNull(cache);
+            SimpleMailbox cached = new SimpleMailbox(new UUID(13, 0));
+            SearchQuery seen = new SearchQuery();
+            seen.andCriteria(SearchQuery.flagIsSet(Flags.Flag.SEEN));
+            cachedIndex.add(null, cached, message(cached.getMailboxId(), 1, "Cached " + CUSTARD));
+            assertEquals(Collections.singletonList(1L), search(cachedIndex, cached, CUSTARD));
+            assertFalse(cachedIndex.search(null, cached, seen).hasNext());
+            long hits = cache.getHits();
+            assertEquals(Collections.singletonList(1L), search(cachedIndex, cached, CUSTARD));
+            assertEquals(hits + 1, cache.getHits());
+
+            cachedIndex.add(null, cached, message(cached.getMailboxId(), 2, "Cached " + CUSTARD));
+            assertEquals(Arrays.asList(1L, 2L), search(cachedIndex, cached, CUSTARD));
+
+            cachedIndex.update(null, cached, MessageRange.one(2), new Flags(Flags.Flag.SEEN));
+            assertEquals(Collections.singletonList(2L), Lists.newArrayList(cachedIndex.search(null, cached, seen)));
+            hits = cache.getHits();
+            assertEquals(Arrays.asList(1L, 2L), search(cachedIndex, cached, CUSTARD));
+            // a flag update leaves the results of the queries without flag criterion
+            assertEquals(hits + 1, cache.getHits());
+
+            cachedIndex.delete(null, cached, MessageRange.one(1));
+            assertEquals(Collections.singletonList(2L), search(cachedIndex, cached, CUSTARD));
+            assertEquals(Collections.singletonList(2L), Lists.newArrayList(cachedIndex.search(null, cached, seen)));
+        } finally {
+            cachedStore.close();
+        }
+    }
+
+    @Test
+    public void testWritesInvalidateThePostingsCachedByTheRegions() throws Exception {
+        SimpleMailbox postings = new SimpleMailbox(new UUID(14, 0));
+        index.add(null, postings, message(postings.getMailboxId(), 1, "Posting " + CUSTARD));
+        // the second searches are answered from the posting cache of the regions
+        for (int i = 0; i < 2; i++) {
+            assertEquals(Collections.singletonList(1L), search(index, postings, CUSTARD));
+            assertEquals(Collections.singletonList(1L), search(index, postings, "USTAR"));
+        }
+
+        index.add(null, postings, message(postings.getMailboxId(), 2, "Posting " + CUSTARD));
+        assertEquals(Arrays.asList(1L, 2L), search(index, postings, CUSTARD));
+        assertEquals(Arrays.asList(1L, 2L), search(index, postings, "USTAR"));
+
+        index.add(null, postings, message(postings.getMailboxId(), 3, "Posting MUSTARD"));
+        assertEquals(Arrays.asList(1L, 2L, 3L), search(index, postings, "USTAR"));
+
+        index.delete(null, postings, MessageRange.one(1));
+        assertEquals(Arrays.asList(2L, 3L), search(index, postings, "USTAR"));
+        assertEquals(Collections.singletonList(2L), search(index, postings, CUSTARD));
+    }
+
+    @Test
+    public void testLargeMessagesAreWrittenInChunks() throws Exception {
+        Configuration configuration = new Configuration(HTU.getConfiguration());
+        configuration.setInt(HBaseIndexStore.CHUNK_TERMS, 4);
+        configuration.setBoolean(TermFrequency.ENABLED, true);
+        HBaseIndexStore chunkStore = HBaseIndexStore.open(configuration);
+        HTable table = new HTable(HTU.getConfiguration(), INDEX_TABLE.name);
+        try {
+            MessageSearchIndexListener chunkIndex = new MessageSearchIndexListener(null, chunkStore);
+            SimpleMailbox chunks = new SimpleMailbox(new UUID(15, 0));
+            byte[] mailboxId = uuidToBytes(chunks.getMailboxId());
+            // more distinct terms than a chunk holds between the two custards
+            chunkIndex.add(null, chunks, message(chunks.getMailboxId(), 1,
+                    CUSTARD + " ALPHA BRAVO CHARLIE DELTA ECHO " + CUSTARD));
+            assertEquals(Collections.singletonList(1L), search(chunkIndex, chunks, CUSTARD));
+            assertEquals(Collections.singletonList(1L), search(chunkIndex, chunks, "ECHO"));
+
+            // the custard cell was rewritten by the later chunk with the count of both
+            byte[] custard = RowKeys.suffix(MessageFields.BODY_FIELD.id, Bytes.toBytes(CUSTARD));
+            byte[] qualifier = Bytes.toBytes(1L);
+            byte[] value = table.get(new Get(RowKeys.row(mailboxId, custard))).getValue(COLUMN_FAMILY.name, qualifier);
+            assertEquals(2, TermFrequency.decode(value, 0, value.length));
+            int custards = 0;
+            for (byte[] suffix : chunkStore.retrieveDocument(mailboxId, 1))
+                if (Bytes.equals(custard, suffix))
+                    custards++;
+            assertEquals(1, custards);
+
+            // every version of the rewritten cell goes with the mail
+            chunkIndex.delete(null, chunks, MessageRange.one(1));
+            assertTrue(table.get(new Get(RowKeys.row(mailboxId, custard))).isEmpty());
+            assertTrue(search(chunkIndex, chunks, CUSTARD).isEmpty());
+        } finally {
+            table.close();
+            chunkStore.close();
+        }
+    }
+
+    @Test
+    public void testTermsBeyondTheLimitOfAMessageAreSkipped() throws Exception {
+        Configuration configuration = new Configuration(HTU.getConfiguration());
+        configuration.setInt(HBaseIndexStore.CHUNK_TERMS, 2);
+        // the flags, the date and the uid rows, then three terms
+        configuration.setInt(HBaseIndexStore.MAX_MESSAGE_TERMS, 6);
+        HBaseIndexStore limitedStore = HBaseIndexStore.open(configuration);
+        try {
+            MessageSearchIndexListener limitedIndex = new MessageSearchIndexListener(null, limitedStore);
+            SimpleMailbox limited = new SimpleMailbox(new UUID(19, 0));
+            byte[] mailboxId = uuidToBytes(limited.getMailboxId());
+            limitedIndex.add(null, limited, message(limited.getMailboxId(), 1,
+                    "ALPHA BRAVO CHARLIE DELTA ECHO ALPHA"));
+            assertEquals(6, limitedStore.retrieveDocument(mailboxId, 1).size());
+            assertEquals(Collections.singletonList(1L), search(limitedIndex, limited, "ALPHA"));
+            assertEquals(Collections.singletonList(1L), search(limitedIndex, limited, "CHARLIE"));
+            assertTrue(search(limitedIndex, limited, "DELTA").isEmpty());
+            assertTrue(search(limitedIndex, limited, "ECHO").isEmpty());
+        } finally {
+            limitedStore.close();
+        }
+    }
+
+    @Test
+    public void testMessageFailingToParseLeavesNoPostings() throws Exception {
+        Configuration configuration = new Configuration(HTU.getConfiguration());
+        configuration.setInt(HBaseIndexStore.CHUNK_TERMS, 4);
+        HBaseIndexStore chunkStore = HBaseIndexStore.open(configuration);
+        HTable table = new HTable(HTU.getConfiguration(), INDEX_TABLE.name);
+        try {
+            MessageSearchIndexListener chunkIndex = new MessageSearchIndexListener(null, chunkStore);
+            SimpleMailbox failing = new SimpleMailbox(new UUID(16, 0));
+            byte[] mailboxId = uuidToBytes(failing.getMailboxId());
+            String body = "ALPHA BRAVO CHARLIE DELTA ECHO FOXTROT GOLF HOTEL\r\nINDIA\r\n";
+            SimpleMailboxMembership message = unreadableMessage(failing.getMailboxId(), 1, body, "INDIA\r\n".length());
+            try {
+                chunkIndex.add(null, failing, message);
+                fail();
+            } catch (MailboxException e) {
+                // expected
+            }
+
+            // the chunks written before the failure are gone, nothing else was written
+            byte[] alpha = RowKeys.suffix(MessageFields.BODY_FIELD.id, Bytes.toBytes("ALPHA"));
+            assertTrue(table.get(new Get(RowKeys.row(mailboxId, alpha))).isEmpty());
+            assertNull(chunkStore.retrieveDocument(mailboxId, 1));
+            assertTrue(search(chunkIndex, failing, "ALPHA").isEmpty());
+            SearchQuery query = new SearchQuery();
+            query.andCriteria(SearchQuery.uid(new SearchQuery.NumericRange[]{new SearchQuery.NumericRange(1)}));
+            assertFalse(chunkIndex.search(null, failing, query).hasNext());
+            query = new SearchQuery();
+            query.andCriteria(SearchQuery.flagIsUnSet(Flags.Flag.SEEN));
+            assertFalse(chunkIndex.search(null, failing, query).hasNext());
+        } finally {
+            table.close();
+            chunkStore.close();
+        }
+    }
+
+    @Test
+    public void testOversizedPutsAreDroppedAndReported() throws Exception {
+        Configuration configuration = new Configuration(HTU.getConfiguration());
+        configuration.setInt("hbase.client.keyvalue.maxsize", 1024);
+        HBaseIndexStore limitedStore = HBaseIndexStore.open(configuration);
+        HTable table = new HTable(HTU.getConfiguration(), INDEX_TABLE.name);
+        try {
+            byte[] mailboxId = uuidToBytes(new UUID(18, 0));
+            byte[] small = RowKeys.row(mailboxId, RowKeys.suffix(MessageFields.BODY_FIELD.id, Bytes.toBytes("SMALL")));
+            byte[] large = RowKeys.row(mailboxId, RowKeys.suffix(MessageFields.BODY_FIELD.id, Bytes.toBytes("LARGE")));
+            Put smallPut = new Put(small);
+            smallPut.add(COLUMN_FAMILY.name, Bytes.toBytes(1L), EMPTY_COLUMN_VALUE.name);
+            Put largePut = new Put(large);
+            largePut.add(COLUMN_FAMILY.name, Bytes.toBytes(1L), new byte[4096]);
+            limitedStore.storeMail(Arrays.asList(largePut, smallPut));
+            try {
+                limitedStore.flushToStore();
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+            // the valid put went through, the failure is only reported once
+            assertFalse(table.get(new Get(small)).isEmpty());
+            assertTrue(table.get(new Get(large)).isEmpty());
+            limitedStore.flushToStore();
+        } finally {
+            table.close();
+            limitedStore.close();
+        }
+    }
+
+    /**
+     * a message whose content fails to be read once all but its last bytes are read
+     */
+    private static SimpleMailboxMembership unreadableMessage(UUID mailboxId, long uid, String body, final int lost) {
+        return new SimpleMailboxMembership(mailboxId, uid, 0, new Date(), 20, new Flags(), body.getBytes(),
+                new HashMap<String, String>()) {
+            @Override
+            public InputStream getFullContent() throws IOException {
+                byte[] content = ByteStreams.toByteArray(super.getFullContent());
+                final int readable = content.length - lost;
+                return new FilterInputStream(new ByteArrayInputStream(content)) {
+                    private int read;
+
+                    @Override
+                    public int read() throws IOException {
+                        byte[] b = new byte[1];
+                        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        if (read >= readable)
+                            throw new IOException("Unreadable message");
+                        int count = super.read(buffer, offset, Math.min(length, readable - read));
+                        if (count > 0)
+                            read += count;
+                        return count;
+                    }
+                };
+            }
+        };
+    }
+
+    @Test
+    public void testBulkIndexingResumesAfterItsCheckpoint() throws Exception {
+        Configuration configuration = new Configuration(HTU.getConfiguration());
+        configuration.setInt(HBaseIndexStore.BULK_BATCH_SIZE, 2);
+        HBaseIndexStore bulkStore = HBaseIndexStore.open(configuration);
+        MessageSearchIndexListener bulkIndex = new MessageSearchIndexListener(null, bulkStore);
+        BulkIndexer indexer = new BulkIndexer(bulkIndex, bulkStore);
+        try {
+            SimpleMailbox bulk = new SimpleMailbox(new UUID(17, 0));
+            byte[] mailboxId = uuidToBytes(bulk.getMailboxId());
+            List<Message<UUID>> messages = Lists.newArrayList();
+            for (long uid = 1; uid <= 5; uid++)
+                messages.add(message(bulk.getMailboxId(), uid, "Bulk " + CUSTARD));
+            final List<Long> checkpoints = Lists.newArrayList();
+            BulkIndexer.Progress progress = new BulkIndexer.Progress() {
+                @Override
+                public void indexed(Mailbox<UUID> mailbox, long lastUid, long count) {
+                    checkpoints.add(lastUid);
+                }
+            };
+            assertEquals(0, bulkStore.bulkCheckpoint(mailboxId));
+            assertEquals(5, indexer.resume(null, mapperFactory(messages), bulk, progress));
+            assertEquals(Arrays.asList(2L, 4L, 5L), checkpoints);
+            assertEquals(5, bulkStore.bulkCheckpoint(mailboxId));
+            assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), search(bulkIndex, bulk, CUSTARD));
+
+            // a mail delivered meanwhile is added on its own, ahead of the mails the bulk indexing has left
+            messages.add(message(bulk.getMailboxId(), 6, "Bulk RHUBARB"));
+            messages.add(message(bulk.getMailboxId(), 7, "Bulk RHUBARB"));
+            bulkIndex.add(null, bulk, messages.get(6));
+            assertEquals(5, bulkStore.bulkCheckpoint(mailboxId));
+
+            checkpoints.clear();
+            assertEquals(2, indexer.resume(null, mapperFactory(messages), bulk, progress));
+            assertEquals(Collections.singletonList(7L), checkpoints);
+            assertEquals(Arrays.asList(6L, 7L), search(bulkIndex, bulk, "RHUBARB"));
+            // the checkpoint row holds no message
+            assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L),
+                    Lists.newArrayList(bulkIndex.search(null, bulk, new SearchQuery())));
+            assertEquals(0, indexer.resume(null, mapperFactory(messages), bulk, progress));
+        } finally {
+            indexer.close();
+            bulkStore.close();
+        }
+    }
+
+    /**
+     * a factory whose mappers only find the messages of the list, which are in uid order
+     */
+    @SuppressWarnings("unchecked")
+    private static MessageMapperFactory<UUID> mapperFactory(final List<Message<UUID>> messages) {
+        final MessageMapper<UUID> mapper = (MessageMapper<UUID>) Proxy.newProxyInstance(
+                MessageMapper.class.getClassLoader(), new Class<?>[]{MessageMapper.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (!"findInMailbox".equals(method.getName()))
+                    throw new UnsupportedOperationException(method.getName());
+                MessageRange range = (MessageRange) args[1];
+                int limit = (Integer) args[3];
+                List<Message<UUID>> found = Lists.newArrayList();
+                for (Message<UUID> message : messages)
+                    if (range.includes(message.getUid()) && (limit < 0 || found.size() < limit))
+                        found.add(message);
+                return found.iterator();
+            }
+        });
+        return (MessageMapperFactory<UUID>) Proxy.newProxyInstance(
+                MessageMapperFactory.class.getClassLoader(), new Class<?>[]{MessageMapperFactory.class},
+                new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (!"getMessageMapper".equals(method.getName()))
+                    throw new UnsupportedOperationException(method.getName());
+                return mapper;
+            }
+        });
+    }
+
     @Test
     public void testBodyShouldMatchPhraseInBody() throws Exception {
         SearchQuery query = new SearchQuery();
@@ -256,6 +938,37 @@ public class MessageSearchIndexListenerTest {
         assertFalse(it3.hasNext());
     }
 
+    @Test
+    public void testSearchCriteriaShouldAllMatch() throws Exception {
+        SearchQuery q = new SearchQuery();
+        q.andCriteria(SearchQuery.flagIsSet(Flags.Flag.DELETED));
+        q.andCriteria(SearchQuery.bodyContains("Otherbody2"));
+        Iterator<Long> it = index.search(null, mailbox, q);
+        assertEquals(3L, it.next().longValue());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testUpdateFlagsMovesMailBetweenPostings() throws Exception {
+        index.update(null, mailbox2, MessageRange.one(1), new Flags(Flags.Flag.FLAGGED));
+
+        SearchQuery q = new SearchQuery();
+        q.andCriteria(SearchQuery.flagIsSet(Flags.Flag.FLAGGED));
+        Iterator<Long> it = index.search(null, mailbox2, q);
+        assertEquals(1L, it.next().longValue());
+        assertFalse(it.hasNext());
+
+        q = new SearchQuery();
+        q.andCriteria(SearchQuery.flagIsSet(Flags.Flag.ANSWERED));
+        assertFalse(index.search(null, mailbox2, q).hasNext());
+
+        q = new SearchQuery();
+        q.andCriteria(SearchQuery.flagIsUnSet(Flags.Flag.ANSWERED));
+        it = index.search(null, mailbox2, q);
+        assertEquals(1L, it.next().longValue());
+        assertFalse(it.hasNext());
+    }
+
     @Test
     public void testSearchBody() throws Exception {
         SearchQuery q2 = new SearchQuery();
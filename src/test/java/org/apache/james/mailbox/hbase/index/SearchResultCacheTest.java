@@ -0,0 +1,87 @@
+package org.apache.james.mailbox.hbase.index;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import org.apache.james.mailbox.hbase.store.MessageFields;
+import org.apache.james.mailbox.hbase.store.UidSet;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.apache.james.mailbox.hbase.store.MessageFields.BODY_FIELD;
+import static org.apache.james.mailbox.hbase.store.MessageFields.FLAGS_FIELD;
+import static org.junit.Assert.*;
+
+public class SearchResultCacheTest {
+    private final UUID mailbox = UUID.randomUUID();
+
+    private static Multimap<MessageFields, String> query(MessageFields field, String term) {
+        Multimap<MessageFields, String> query = ArrayListMultimap.create();
+        query.put(field, term);
+        return query;
+    }
+
+    @Test
+    public void testCriteriaOrderDoesNotChangeTheKey() throws Exception {
+        List<Multimap<MessageFields, String>> criteria = Lists.newArrayList(query(BODY_FIELD, "A"), query(FLAGS_FIELD, "1\\SEEN"));
+        assertEquals(SearchResultCache.normalize(criteria), SearchResultCache.normalize(Lists.reverse(criteria)));
+        assertTrue(SearchResultCache.isFlagDependent(criteria));
+    }
+
+    @Test
+    public void testChangesInvalidateTheResults() throws Exception {
+        SearchResultCache cache = new SearchResultCache(10, 10);
+        cache.put(mailbox, "body", false, cache.version(mailbox), UidSet.of(1, 2, 3));
+        cache.put(mailbox, "flags", true, cache.version(mailbox), UidSet.of(2));
+        assertArrayEquals(new long[]{1, 2, 3}, cache.get(mailbox, "body").toArray());
+
+        cache.removeUids(mailbox, UidSet.of(2));
+        assertArrayEquals(new long[]{1, 3}, cache.get(mailbox, "body").toArray());
+        assertArrayEquals(new long[0], cache.get(mailbox, "flags").toArray());
+
+        cache.invalidateFlags(mailbox);
+        assertNull(cache.get(mailbox, "flags"));
+        assertNotNull(cache.get(mailbox, "body"));
+
+        cache.invalidate(mailbox);
+        assertNull(cache.get(mailbox, "body"));
+        assertEquals(4, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testSearchRunningDuringAChangeIsNotCached() throws Exception {
+        SearchResultCache cache = new SearchResultCache(10, 10);
+        long version = cache.version(mailbox);
+        cache.invalidate(mailbox);
+        cache.put(mailbox, "body", false, version, UidSet.of(1));
+        assertNull(cache.get(mailbox, "body"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedQueryIsEvicted() throws Exception {
+        SearchResultCache cache = new SearchResultCache(10, 2);
+        long version = cache.version(mailbox);
+        cache.put(mailbox, "a", false, version, UidSet.of(1));
+        cache.put(mailbox, "b", false, version, UidSet.of(2));
+        cache.get(mailbox, "a");
+        cache.put(mailbox, "c", false, version, UidSet.of(3));
+        assertNull(cache.get(mailbox, "b"));
+        assertNotNull(cache.get(mailbox, "a"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testMailboxEvictionsAreCounted() throws Exception {
+        SearchResultCache cache = new SearchResultCache(1, 1);
+        cache.put(mailbox, "body", false, cache.version(mailbox), UidSet.of(1));
+        cache.put(mailbox, "other", false, cache.version(mailbox), UidSet.of(2));
+        assertEquals(1, cache.getEvictions());
+        UUID other = UUID.randomUUID();
+        cache.put(other, "body", false, cache.version(other), UidSet.of(3));
+        assertEquals(1, cache.getMailboxCount());
+        assertEquals(2, cache.getEvictions());
+    }
+}
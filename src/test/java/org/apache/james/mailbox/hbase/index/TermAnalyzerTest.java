@@ -0,0 +1,55 @@
+package org.apache.james.mailbox.hbase.index;
+
+import com.google.common.collect.Lists;
+import org.apache.james.mailbox.hbase.store.MessageFields;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.apache.james.mailbox.hbase.store.MessageFields.BODY_FIELD;
+import static org.junit.Assert.*;
+
+public class TermAnalyzerTest {
+
+    private static List<String> analyze(String value) {
+        final List<String> terms = Lists.newArrayList();
+        TermAnalyzer.get().analyze(BODY_FIELD, value, new TermSink() {
+            @Override
+            public void term(MessageFields field, char[] buffer, int offset, int length) {
+                terms.add(new String(buffer, offset, length));
+            }
+        });
+        return terms;
+    }
+
+    @Test
+    public void testTermsAreUpperCase() throws Exception {
+        assertEquals(Lists.newArrayList("HELLO", "USER@EXAMPLE.COM"), analyze("Hello user@Example.com"));
+    }
+
+    @Test
+    public void testFoldingMatchesStringUpperCase() throws Exception {
+        assertEquals(Lists.newArrayList("STRASSE", "ÉTÉ"), analyze("straße été"));
+    }
+
+    @Test
+    public void testUpperCaseTermIsNotSplit() throws Exception {
+        final List<String> terms = Lists.newArrayList();
+        TermSink sink = new TermSink() {
+            @Override
+            public void term(MessageFields field, char[] buffer, int offset, int length) {
+                terms.add(new String(buffer, offset, length));
+            }
+        };
+        TermAnalyzer.get().upperCaseTerm(BODY_FIELD, "Jane Doe <jane@Example.com>", sink);
+        TermAnalyzer.get().upperCaseTerm(BODY_FIELD, "Straße", sink);
+        assertEquals(Lists.newArrayList("JANE DOE <JANE@EXAMPLE.COM>", "STRASSE"), terms);
+    }
+
+    @Test
+    public void testAnalyzerIsReused() throws Exception {
+        assertSame(TermAnalyzer.get(), TermAnalyzer.get());
+        assertEquals(Lists.newArrayList("ONE"), analyze("one"));
+        assertEquals(Lists.newArrayList("TWO", "THREE"), analyze("two three"));
+    }
+}
@@ -0,0 +1,85 @@
+package org.apache.james.mailbox.hbase.store;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class FlagPostingsTest {
+    private final byte[] mailboxId = RowKeys.mailboxId(new UUID(7, 0));
+    private final FlagPostings postings = new FlagPostings(16);
+
+    @Test
+    public void testChunkBoundary() throws Exception {
+        assertArrayEquals(postings.flagsRow(mailboxId, 0), postings.flagsRow(mailboxId, 15));
+        assertFalse(Bytes.equals(postings.flagsRow(mailboxId, 15), postings.flagsRow(mailboxId, 16)));
+        assertArrayEquals(postings.flagsRow(mailboxId, 16), postings.flagsRow(mailboxId, 31));
+        assertArrayEquals(postings.postingRow(mailboxId, "\\SEEN", 16), postings.postingRow(mailboxId, "\\SEEN", 31));
+        assertFalse(Bytes.equals(postings.postingRow(mailboxId, "\\SEEN", 31), postings.postingRow(mailboxId, "\\SEEN", 32)));
+        // the chunks sort in uid order
+        assertTrue(Bytes.compareTo(postings.flagsRow(mailboxId, 255), postings.flagsRow(mailboxId, 256)) < 0);
+    }
+
+    @Test
+    public void testPostingPrefixOnlyCoversTheChunksOfTheFlag() throws Exception {
+        byte[] prefix = postings.postingPrefix(mailboxId, "custard");
+        byte[] end = RowKeys.prefixSuccessor(prefix);
+        for (long uid : new long[]{0, 15, 16, Long.MAX_VALUE}) {
+            byte[] row = postings.postingRow(mailboxId, "custard", uid);
+            assertTrue(startsWith(row, prefix));
+            assertTrue(Bytes.compareTo(row, end) < 0);
+        }
+        // a longer flag name starting with the same letters is out of the scan
+        assertFalse(startsWith(postings.postingRow(mailboxId, "custards", 0), prefix));
+        assertFalse(startsWith(postings.postingRow(mailboxId, "custard", 0),
+                postings.postingPrefix(mailboxId, "custards")));
+    }
+
+    @Test
+    public void testWidthHasToBePositive() throws Exception {
+        try {
+            new FlagPostings(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEncodingRoundTrip() throws Exception {
+        HashSet<String> flags = new HashSet<String>(Arrays.asList("\\SEEN", "\\DRAFT", "custard"));
+        assertEquals(flags, FlagPostings.decode(Bytes.toBytes(FlagPostings.encode(flags))));
+        assertTrue(FlagPostings.decode(null).isEmpty());
+        assertTrue(FlagPostings.decode(Bytes.toBytes("")).isEmpty());
+    }
+
+    @Test
+    public void testLegacyValueIsDecoded() throws Exception {
+        assertEquals(new HashSet<String>(Arrays.asList("\\ANSWERED", "\\FLAGGED", "\\SEEN")),
+                FlagPostings.decodeLegacy(Bytes.toBytes("\\ANSWERED\\FLAGGED\\FLAG")));
+        assertEquals(new HashSet<String>(Arrays.asList("\\DELETED", "custard")),
+                FlagPostings.decodeLegacy(Bytes.toBytes("\\DELETEDcustard")));
+        assertEquals(new HashSet<String>(Arrays.asList("\\RECENT", "rhubarb")),
+                FlagPostings.decodeLegacy(Bytes.toBytes("\\RECENT rhubarb")));
+        assertTrue(FlagPostings.decodeLegacy(Bytes.toBytes("")).isEmpty());
+        assertTrue(FlagPostings.decodeLegacy(null).isEmpty());
+    }
+
+    @Test
+    public void testLegacyRowsAreRecognized() throws Exception {
+        assertTrue(FlagPostings.isLegacyFlagsRow(FlagPostings.legacyFlagsRow(mailboxId)));
+        assertFalse(FlagPostings.isLegacyFlagsRow(postings.flagsRow(mailboxId, 0)));
+        byte[] unchunked = RowKeys.row(mailboxId, MessageFields.FLAG_POSTING_FIELD.id, Bytes.toBytes("\\SEEN"));
+        assertTrue(FlagPostings.isLegacyPostingRow(unchunked));
+        assertFalse(FlagPostings.isLegacyPostingRow(postings.postingRow(mailboxId, "\\SEEN", 1)));
+        assertFalse(FlagPostings.isLegacyPostingRow(postings.flagsRow(mailboxId, 1)));
+    }
+
+    private static boolean startsWith(byte[] row, byte[] prefix) {
+        return row.length >= prefix.length && Bytes.equals(Arrays.copyOf(row, prefix.length), prefix);
+    }
+}
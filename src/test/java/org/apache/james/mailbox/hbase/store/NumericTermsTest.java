@@ -0,0 +1,37 @@
+package org.apache.james.mailbox.hbase.store;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NumericTermsTest {
+
+    @Test
+    public void testEncodingSortsLikeTheValues() throws Exception {
+        long[] values = new long[]{Long.MIN_VALUE, -62135769600000L, -1, 0, 1, 255, 256, 1L << 40, Long.MAX_VALUE};
+        for (int i = 1; i < values.length; i++)
+            assertTrue(Bytes.compareTo(NumericTerms.encode(values[i - 1]), NumericTerms.encode(values[i])) < 0);
+    }
+
+    @Test
+    public void testEncodingRoundTrip() throws Exception {
+        for (long value : new long[]{Long.MIN_VALUE, -5, 0, 42, Long.MAX_VALUE})
+            assertEquals(value, NumericTerms.decode(NumericTerms.encode(value), 0));
+    }
+
+    @Test
+    public void testLegacyTermIsZeroPadded() throws Exception {
+        assertEquals("0000000000000000042", NumericTerms.legacyTerm(42));
+        assertEquals("-0000000000000000042", NumericTerms.legacyTerm(-42));
+        assertEquals(Long.toString(Long.MIN_VALUE), NumericTerms.legacyTerm(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void testLegacyTermIsConverted() throws Exception {
+        byte[] legacy = Bytes.toBytes(NumericTerms.legacyTerm(1234567L));
+        assertTrue(NumericTerms.isLegacyTerm(legacy, 0, legacy.length));
+        assertFalse(NumericTerms.isLegacyTerm(NumericTerms.encode(1234567L), 0, Bytes.SIZEOF_LONG));
+        assertArrayEquals(NumericTerms.encode(1234567L), NumericTerms.fromLegacy(legacy, 0, legacy.length));
+    }
+}
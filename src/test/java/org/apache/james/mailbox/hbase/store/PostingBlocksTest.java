@@ -0,0 +1,46 @@
+package org.apache.james.mailbox.hbase.store;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PostingBlocksTest {
+
+    @Test
+    public void testBlockRoundTrip() throws Exception {
+        long[] uids = new long[]{1, 2, 3, 200, 70000, 1L << 40};
+        byte[] block = PostingBlocks.encode(uids, uids.length);
+        assertArrayEquals(uids, PostingBlocks.decode(block, 0, block.length));
+    }
+
+    @Test
+    public void testEncodeOnlyTheGivenLength() throws Exception {
+        byte[] block = PostingBlocks.encode(new long[]{5, 6, 7}, 2);
+        assertArrayEquals(new long[]{5, 6}, PostingBlocks.decode(block, 0, block.length));
+    }
+
+    @Test
+    public void testAddUidsReadsSingleAndBlockCells() throws Exception {
+        UidSet uids = new UidSet();
+        PostingBlocks.addUids(Bytes.toBytes(4L), HBaseNames.EMPTY_COLUMN_VALUE.name, uids);
+        PostingBlocks.addUids(PostingBlocks.blockQualifier(10L, 11L), PostingBlocks.encode(new long[]{10, 11}, 2), uids);
+        assertArrayEquals(new long[]{4L, 10L, 11L}, uids.toArray());
+    }
+
+    @Test
+    public void testLegacyBlockIsRead() throws Exception {
+        UidSet uids = new UidSet();
+        byte[] legacy = Bytes.add(Bytes.toBytes(10L), new byte[]{PostingBlocks.BLOCK_MARKER});
+        PostingBlocks.addUids(legacy, PostingBlocks.encode(new long[]{10, 12}, 2), uids);
+        assertArrayEquals(new long[]{10L, 12L}, uids.toArray());
+    }
+
+    @Test
+    public void testBlocksWithTheSameFirstUidHaveDistinctQualifiers() throws Exception {
+        assertFalse(Bytes.equals(PostingBlocks.blockQualifier(10L, 11L), PostingBlocks.blockQualifier(10L, 300L)));
+        // a block sorts right after the single cell of its first uid
+        assertTrue(Bytes.compareTo(Bytes.toBytes(10L), PostingBlocks.blockQualifier(10L, 300L)) < 0);
+        assertTrue(Bytes.compareTo(PostingBlocks.blockQualifier(10L, 300L), Bytes.toBytes(11L)) < 0);
+    }
+}
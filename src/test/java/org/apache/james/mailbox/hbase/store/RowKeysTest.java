@@ -0,0 +1,47 @@
+package org.apache.james.mailbox.hbase.store;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class RowKeysTest {
+
+    @Test
+    public void testRowIsDecodedInPlace() throws Exception {
+        UUID uuid = new UUID(11, 22);
+        byte[] row = RowKeys.row(RowKeys.mailboxId(uuid), MessageFields.BODY_FIELD.id, Bytes.toBytes("CUSTARD"));
+        byte[] buffer = Bytes.add(Bytes.toBytes("xx"), row);
+        assertEquals(uuid, RowKeys.mailboxUUID(buffer, 2));
+        assertEquals(MessageFields.BODY_FIELD, RowKeys.field(buffer, 2, row.length));
+        assertEquals("CUSTARD", RowKeys.term(buffer, 2, row.length));
+    }
+
+    @Test
+    public void testUnknownFieldIsNotFound() throws Exception {
+        assertEquals(MessageFields.NOT_FOUND, MessageFields.byId((byte) 0xF0));
+        assertEquals(MessageFields.NOT_FOUND, RowKeys.field(new byte[4], 0, 4));
+    }
+
+    @Test
+    public void testSuffixRoundTrip() throws Exception {
+        byte[] mailboxId = RowKeys.mailboxId(UUID.randomUUID());
+        byte[] suffix = RowKeys.suffix(MessageFields.FROM_FIELD.id, Bytes.toBytes("HARRY"));
+        byte[] row = RowKeys.row(mailboxId, suffix);
+        assertArrayEquals(suffix, RowKeys.suffix(row));
+        assertArrayEquals(row, RowKeys.row(mailboxId, MessageFields.FROM_FIELD.id, Bytes.toBytes("HARRY")));
+    }
+
+    @Test
+    public void testCheckpointRowIsRecognized() throws Exception {
+        byte[] mailboxId = RowKeys.mailboxId(UUID.randomUUID());
+        byte[] row = RowKeys.checkpointRow(mailboxId);
+        assertTrue(RowKeys.isCheckpointRow(row, 0, row.length));
+        byte[] tombstones = Tombstones.row(mailboxId);
+        assertFalse(RowKeys.isCheckpointRow(tombstones, 0, tombstones.length));
+        byte[] document = RowKeys.documentRow(mailboxId, 1);
+        assertFalse(RowKeys.isCheckpointRow(document, 0, document.length));
+    }
+}
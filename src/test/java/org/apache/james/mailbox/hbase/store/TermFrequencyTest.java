@@ -0,0 +1,32 @@
+package org.apache.james.mailbox.hbase.store;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TermFrequencyTest {
+
+    @Test
+    public void testSmallCountsTakeOneByte() throws Exception {
+        assertEquals(1, TermFrequency.encode(50).length);
+        assertEquals(50, TermFrequency.decode(TermFrequency.encode(50), 0, 1));
+    }
+
+    @Test
+    public void testEncodingIsAVInt() throws Exception {
+        for (int count : new int[]{1, 127, 128, 300, 70000, Integer.MAX_VALUE}) {
+            byte[] value = TermFrequency.encode(count);
+            DataInputBuffer in = new DataInputBuffer();
+            in.reset(value, value.length);
+            assertEquals(count, WritableUtils.readVInt(in));
+            assertEquals(count, TermFrequency.decode(value, 0, value.length));
+        }
+    }
+
+    @Test
+    public void testEmptyValueIsUnknown() throws Exception {
+        assertEquals(0, TermFrequency.decode(new byte[0], 0, 0));
+    }
+}
@@ -0,0 +1,54 @@
+package org.apache.james.mailbox.hbase.store;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class TermGramsTest {
+
+    @Test
+    public void testGramsOfTheValue() throws Exception {
+        Set<byte[]> grams = TermGrams.grams(Bytes.toBytes("CUSTARD"));
+        assertEquals(5, grams.size());
+        assertTrue(grams.contains(Bytes.toBytes("CUS")));
+        assertTrue(grams.contains(Bytes.toBytes("ARD")));
+        assertTrue(TermGrams.grams(Bytes.toBytes("CU")).isEmpty());
+    }
+
+    @Test
+    public void testEveryPositionOfTheTermStartsAnIndexedGram() throws Exception {
+        for (String value : new String[]{"C", "CU", "CUSTARD"}) {
+            byte[] term = Bytes.toBytes(value);
+            Set<byte[]> grams = TermGrams.indexedGrams(term);
+            assertEquals(term.length, grams.size());
+            for (byte[] gram : grams)
+                assertEquals(TermGrams.GRAM_LENGTH, gram.length);
+            // a value shorter than a gram is found by the prefix of the gram rows
+            for (int start = 0; start < term.length; start++) {
+                for (int end = start + 1; end <= Math.min(term.length, start + TermGrams.GRAM_LENGTH - 1); end++) {
+                    byte[] substring = Arrays.copyOfRange(term, start, end);
+                    boolean found = false;
+                    for (byte[] gram : grams)
+                        found |= Bytes.equals(gram, 0, substring.length, substring, 0, substring.length);
+                    assertTrue(value + " " + Bytes.toString(substring), found);
+                }
+            }
+        }
+        assertTrue(TermGrams.indexedGrams(Bytes.toBytes("CUSTARD")).containsAll(TermGrams.grams(Bytes.toBytes("CUSTARD"))));
+        assertTrue(TermGrams.indexedGrams(new byte[0]).isEmpty());
+    }
+
+    @Test
+    public void testGramRowsAreRecognized() throws Exception {
+        byte[] mailboxId = RowKeys.mailboxId(new UUID(3, 0));
+        byte[] row = TermGrams.row(mailboxId, MessageFields.BODY_FIELD, Bytes.toBytes("CUS"));
+        assertTrue(TermGrams.isGramRow(row, 0, row.length));
+        byte[] term = RowKeys.row(mailboxId, MessageFields.BODY_FIELD.id, Bytes.toBytes("CUS"));
+        assertFalse(TermGrams.isGramRow(term, 0, term.length));
+    }
+}
@@ -0,0 +1,52 @@
+package org.apache.james.mailbox.hbase.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UidSetTest {
+
+    @Test
+    public void testUidsAreSortedAndDeduplicated() throws Exception {
+        UidSet uids = UidSet.of(7, 3, 9, 3, 1);
+        assertEquals(4, uids.size());
+        assertArrayEquals(new long[]{1, 3, 7, 9}, uids.toArray());
+        assertEquals(Lists.newArrayList(1L, 3L, 7L, 9L), Lists.newArrayList(uids));
+        assertTrue(uids.contains(7));
+        assertFalse(uids.contains(8));
+    }
+
+    @Test
+    public void testUnionMergesTheSets() throws Exception {
+        UidSet union = UidSet.union(ImmutableList.of(UidSet.of(1, 4, 9), new UidSet(), UidSet.of(2, 4, 10)));
+        assertArrayEquals(new long[]{1, 2, 4, 9, 10}, union.toArray());
+    }
+
+    @Test
+    public void testRetainAndRemove() throws Exception {
+        UidSet uids = UidSet.of(1, 2, 3, 4, 5);
+        uids.retainAll(UidSet.of(2, 3, 5, 8));
+        assertArrayEquals(new long[]{2, 3, 5}, uids.toArray());
+        uids.removeAll(UidSet.of(3, 4));
+        assertArrayEquals(new long[]{2, 5}, uids.toArray());
+    }
+
+    @Test
+    public void testWireFormatRoundTrip() throws Exception {
+        UidSet uids = UidSet.of(5, 1, 1000000, 6, 7);
+        DataOutputBuffer out = new DataOutputBuffer();
+        uids.write(out);
+        // size, then one byte per gap but the wide one
+        assertEquals(1 + 4 + 4, out.getLength());
+
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        UidSet read = new UidSet();
+        read.readFields(in);
+        assertArrayEquals(new long[]{1, 5, 6, 7, 1000000}, read.toArray());
+    }
+}